@@ -0,0 +1,99 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the compiler and filter benchmarks and writes their results as JSON
+ * to the file given as the only argument. Sizes can be tuned with the
+ * benchmark.* system properties read by each suite.
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("usage: Benchmarks <results.json>");
+            System.exit(1);
+        }
+
+        List<Measurement> measurements = new ArrayList<Measurement>();
+        measurements.addAll(new CompilerBenchmarks().run());
+        measurements.addAll(new FilterBenchmarks().run());
+
+        File results = new File(args[0]);
+        results.getParentFile().mkdirs();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(results), "UTF-8");
+        try {
+            writer.write("{\"environment\": " + Measurement.toJson(environment()) + ",\n \"results\": [\n");
+            for (int i = 0; i < measurements.size(); i++) {
+                writer.write("  " + measurements.get(i).toJson() + (i < measurements.size() - 1 ? ",\n" : "\n"));
+            }
+            writer.write("]}\n");
+        } finally {
+            writer.close();
+        }
+        System.out.println("results written to " + results);
+        System.exit(0);
+    }
+
+    private static Map<String, Object> environment() {
+        Map<String, Object> environment = new LinkedHashMap<String, Object>();
+        environment.put("timestamp", System.currentTimeMillis());
+        environment.put("java.version", System.getProperty("java.version"));
+        environment.put("java.vm.name", System.getProperty("java.vm.name"));
+        environment.put("os.arch", System.getProperty("os.arch"));
+        environment.put("processors", Runtime.getRuntime().availableProcessors());
+        environment.put("org.jcoffeescript.mode", System.getProperty("org.jcoffeescript.mode", "interpreted"));
+        environment.put("org.jcoffeescript.engine", System.getProperty("org.jcoffeescript.engine", "rhino"));
+        return environment;
+    }
+
+    static int intProperty(String name, int defaultValue) {
+        return Integer.parseInt(System.getProperty(name, String.valueOf(defaultValue)));
+    }
+
+    static String corpus(String name) throws IOException {
+        InputStream inputStream = Benchmarks.class.getResourceAsStream("corpus/" + name + ".coffee");
+        if (inputStream == null) {
+            throw new IOException("no corpus file " + name);
+        }
+        Reader reader = new InputStreamReader(inputStream, "UTF-8");
+        try {
+            StringBuilder source = new StringBuilder();
+            char[] buffer = new char[4096];
+            int n;
+            while ((n = reader.read(buffer)) != -1) {
+                source.append(buffer, 0, n);
+            }
+            return source.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript.benchmarks;
+
+import static org.jcoffeescript.benchmarks.Benchmarks.corpus;
+import static org.jcoffeescript.benchmarks.Benchmarks.intProperty;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.jcoffeescript.JCoffeeScriptCompiler;
+import org.jcoffeescript.Option;
+
+/**
+ * Compiler start-up time, and compile latency and allocation over the
+ * small, medium and large corpus files, with and without --bare.
+ */
+public class CompilerBenchmarks {
+
+    private static final String[] CORPUS = {"small", "medium", "large"};
+
+    private final int warmups = intProperty("benchmark.warmups", 3);
+    private final int iterations = intProperty("benchmark.iterations", 5);
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final Method allocatedBytes = allocatedBytesMethod();
+
+    public List<Measurement> run() throws Exception {
+        List<Measurement> measurements = new ArrayList<Measurement>();
+
+        Measurement coldConstruction = new Measurement("compiler.construct.cold", "ms");
+        long start = System.nanoTime();
+        startedCompiler();
+        coldConstruction.add(millisSince(start));
+        measurements.add(report(coldConstruction));
+
+        Measurement construction = new Measurement("compiler.construct", "ms");
+        for (int i = 0; i < warmups + iterations; i++) {
+            start = System.nanoTime();
+            startedCompiler();
+            if (i >= warmups) {
+                construction.add(millisSince(start));
+            }
+        }
+        measurements.add(report(construction));
+
+        for (boolean bare : new boolean[] {false, true}) {
+            Collection<Option> options = bare ? Arrays.asList(Option.BARE) : Collections.<Option>emptyList();
+            JCoffeeScriptCompiler compiler = new JCoffeeScriptCompiler(options);
+            for (String name : CORPUS) {
+                String source = corpus(name);
+                Measurement latency = new Measurement("compiler.compile", "ms")
+                        .param("corpus", name).param("bare", bare).extra("sourceChars", source.length());
+                Measurement allocation = new Measurement("compiler.compile.allocation", "bytes")
+                        .param("corpus", name).param("bare", bare);
+                for (int i = 0; i < warmups + iterations; i++) {
+                    long allocatedBefore = allocatedBytes();
+                    start = System.nanoTime();
+                    compiler.compile(source);
+                    double elapsed = millisSince(start);
+                    long allocated = allocatedBytes() - allocatedBefore;
+                    if (i >= warmups) {
+                        latency.add(elapsed);
+                        if (allocatedBytes != null) {
+                            allocation.add(allocated);
+                        }
+                    }
+                }
+                measurements.add(report(latency));
+                if (allocatedBytes != null) {
+                    measurements.add(report(allocation));
+                }
+            }
+        }
+        return measurements;
+    }
+
+    /**
+     * A compiler with its engine started. Engines start on the first compile
+     * that misses the disk cache, so construction alone times nothing.
+     */
+    private static JCoffeeScriptCompiler startedCompiler() throws Exception {
+        JCoffeeScriptCompiler compiler = new JCoffeeScriptCompiler();
+        compiler.setDiskCache(null);
+        compiler.compile("a = 1");
+        return compiler;
+    }
+
+    static Measurement report(Measurement measurement) {
+        System.out.println(measurement);
+        return measurement;
+    }
+
+    static double millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1e6;
+    }
+
+    // allocation counters are a HotSpot extension of ThreadMXBean
+    private Method allocatedBytesMethod() {
+        try {
+            Method method = threads.getClass().getMethod("getThreadAllocatedBytes", long.class);
+            method.setAccessible(true);
+            method.invoke(threads, Thread.currentThread().getId());
+            return method;
+        } catch (Exception e) {
+            System.out.println("allocation counters not available: " + e);
+            return null;
+        }
+    }
+
+    private long allocatedBytes() throws Exception {
+        if (allocatedBytes == null) {
+            return 0;
+        }
+        return (Long) allocatedBytes.invoke(threads, Thread.currentThread().getId());
+    }
+}
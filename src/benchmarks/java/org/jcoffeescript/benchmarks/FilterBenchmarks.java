@@ -0,0 +1,193 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript.benchmarks;
+
+import static org.jcoffeescript.benchmarks.Benchmarks.corpus;
+import static org.jcoffeescript.benchmarks.Benchmarks.intProperty;
+import static org.jcoffeescript.benchmarks.CompilerBenchmarks.millisSince;
+import static org.jcoffeescript.benchmarks.CompilerBenchmarks.report;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.FilterMapping;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.jcoffeescript.web.CoffeeScriptFilter;
+
+/**
+ * Multi-threaded CoffeeScriptFilter throughput on an embedded Jetty, for
+ * cache hits, cache misses and 304 Not Modified answers.
+ */
+public class FilterBenchmarks {
+
+    private final int port = intProperty("benchmark.port", 9013);
+    private final int threads = intProperty("benchmark.threads", Runtime.getRuntime().availableProcessors());
+    private final int requests = intProperty("benchmark.requests", 2000);
+    private final int missRequests = intProperty("benchmark.missRequests", 4 * threads);
+
+    private final File resourceBase = new File("target/benchmarks/app");
+    private HttpClient httpClient;
+
+    public List<Measurement> run() throws Exception {
+        File coffeeFolder = new File(resourceBase, "WEB-INF/coffee");
+        coffeeFolder.mkdirs();
+        write(new File(coffeeFolder, "hit.coffee"), corpus("medium"));
+        for (int i = 0; i < missRequests; i++) {
+            write(new File(coffeeFolder, "miss-" + i + ".coffee"), corpus("small"));
+        }
+
+        MultiThreadedHttpConnectionManager connections = new MultiThreadedHttpConnectionManager();
+        connections.getParams().setDefaultMaxConnectionsPerHost(threads);
+        connections.getParams().setMaxTotalConnections(threads);
+        httpClient = new HttpClient(connections);
+
+        Server server = startServer();
+        try {
+            List<Measurement> measurements = new ArrayList<Measurement>();
+
+            GetMethod first = get("/javascript/hit.js", null);
+            final String lastModified = first.getResponseHeader("Last-Modified").getValue();
+
+            // warm up the hit path before measuring it
+            throughput("warmup", requests / 4, new Request() {
+                public GetMethod execute(int i) throws IOException {
+                    return get("/javascript/hit.js", null);
+                }
+            });
+            measurements.add(report(throughput("filter.hit", requests, new Request() {
+                public GetMethod execute(int i) throws IOException {
+                    return get("/javascript/hit.js", null);
+                }
+            })));
+            measurements.add(report(throughput("filter.notModified", requests, new Request() {
+                public GetMethod execute(int i) throws IOException {
+                    return get("/javascript/hit.js", lastModified);
+                }
+            })));
+            measurements.add(report(throughput("filter.miss", missRequests, new Request() {
+                public GetMethod execute(int i) throws IOException {
+                    return get("/javascript/miss-" + i + ".js", null);
+                }
+            })));
+            return measurements;
+        } finally {
+            server.stop();
+        }
+    }
+
+    private interface Request {
+        GetMethod execute(int i) throws IOException;
+    }
+
+    private Measurement throughput(String name, final int count, final Request request) throws Exception {
+        final Measurement latency = new Measurement(name, "ms").param("threads", threads);
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<List<Double>>> workers = new ArrayList<Future<List<Double>>>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers.add(executor.submit(new Callable<List<Double>>() {
+                public List<Double> call() throws Exception {
+                    List<Double> samples = new ArrayList<Double>();
+                    int i;
+                    while ((i = next.getAndIncrement()) < count) {
+                        long requestStart = System.nanoTime();
+                        int status = request.execute(i).getStatusCode();
+                        samples.add(millisSince(requestStart));
+                        if (status != 200 && status != 304) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    return samples;
+                }
+            }));
+        }
+        for (Future<List<Double>> worker : workers) {
+            for (double sample : worker.get()) {
+                latency.add(sample);
+            }
+        }
+        double elapsed = millisSince(start);
+        executor.shutdown();
+
+        return latency.extra("requests", count)
+                .extra("failures", failures.get())
+                .extra("throughput", count / (elapsed / 1000))
+                .extra("throughputUnit", "ops/s");
+    }
+
+    private GetMethod get(String path, String ifModifiedSince) throws IOException {
+        GetMethod method = new GetMethod("http://localhost:" + port + path);
+        if (ifModifiedSince != null) {
+            method.setRequestHeader("If-Modified-Since", ifModifiedSince);
+        }
+        try {
+            httpClient.executeMethod(method);
+            method.getResponseBody();
+            return method;
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    private Server startServer() throws Exception {
+        Server server = new Server();
+        SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setPort(port);
+        server.addConnector(connector);
+
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        context.setContextPath("/");
+        FilterHolder filterHolder = context.addFilter(CoffeeScriptFilter.class, "*.js", FilterMapping.DEFAULT);
+        filterHolder.setInitParameter("javascriptResourcePrefix", "/javascript");
+        filterHolder.setInitParameter("coffeescriptFilenamePrefix", "/WEB-INF/coffee");
+        context.addServlet(DefaultServlet.class, "/*");
+        context.setResourceBase(resourceBase.getPath());
+        server.setHandler(context);
+
+        server.start();
+        return server;
+    }
+
+    private void write(File file, String content) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Samples of one benchmark, reported as a JSON object.
+ */
+public class Measurement {
+
+    private final String benchmark;
+    private final String unit;
+    private final Map<String, Object> params = new LinkedHashMap<String, Object>();
+    private final Map<String, Object> extra = new LinkedHashMap<String, Object>();
+    private final List<Double> samples = new ArrayList<Double>();
+
+    public Measurement(String benchmark, String unit) {
+        this.benchmark = benchmark;
+        this.unit = unit;
+    }
+
+    public Measurement param(String name, Object value) {
+        params.put(name, value);
+        return this;
+    }
+
+    public Measurement extra(String name, Object value) {
+        extra.put(name, value);
+        return this;
+    }
+
+    public void add(double sample) {
+        samples.add(sample);
+    }
+
+    public double mean() {
+        double sum = 0;
+        for (double sample : samples) {
+            sum += sample;
+        }
+        return samples.isEmpty() ? 0 : sum / samples.size();
+    }
+
+    public String toJson() {
+        List<Double> sorted = new ArrayList<Double>(samples);
+        Collections.sort(sorted);
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"benchmark\": ").append(quote(benchmark));
+        json.append(", \"params\": ").append(toJson(params));
+        json.append(", \"unit\": ").append(quote(unit));
+        json.append(", \"samples\": ").append(samples.size());
+        json.append(", \"score\": ").append(format(mean()));
+        if (!sorted.isEmpty()) {
+            json.append(", \"min\": ").append(format(sorted.get(0)));
+            json.append(", \"p50\": ").append(format(sorted.get(sorted.size() / 2)));
+            json.append(", \"max\": ").append(format(sorted.get(sorted.size() - 1)));
+        }
+        for (Map.Entry<String, Object> entry : extra.entrySet()) {
+            json.append(", ").append(quote(entry.getKey())).append(": ").append(toJsonValue(entry.getValue()));
+        }
+        return json.append("}").toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-40s %-30s %12.3f %s", benchmark, params, mean(), unit);
+    }
+
+    static String toJson(Map<String, Object> map) {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            if (json.length() > 1) {
+                json.append(", ");
+            }
+            json.append(quote(entry.getKey())).append(": ").append(toJsonValue(entry.getValue()));
+        }
+        return json.append("}").toString();
+    }
+
+    private static String toJsonValue(Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            return format(((Number) value).doubleValue());
+        }
+        if (value instanceof Number || value instanceof Boolean) {
+            return value.toString();
+        }
+        return quote(String.valueOf(value));
+    }
+
+    static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < ' ') {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static String format(double value) {
+        return String.format(java.util.Locale.ENGLISH, "%.3f", value);
+    }
+}
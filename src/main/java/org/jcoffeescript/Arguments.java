@@ -0,0 +1,112 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Command line arguments of {@link Main}.
+ */
+/*default*/ class Arguments {
+
+    static final String USAGE =
+            "usage: java -jar jcoffeescript.jar [--bare] [--minify] < input.coffee > output.js\n" +
+            "       java -jar jcoffeescript.jar [--bare] [--minify] [--watch] [--out <folder> [--manifest <file>]] [--threads <n>] <file or folder>...\n" +
+            "       java -jar jcoffeescript.jar --server [--port <port>] [--threads <n>]\n" +
+            "       java -jar jcoffeescript.jar --client [--port <port>] [--bare] [--minify] < input.coffee > output.js";
+
+    final Collection<Option> options = new LinkedList<Option>();
+    final List<File> inputs = new ArrayList<File>();
+    File outputDirectory;
+    File manifest;
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean watch;
+    boolean server;
+    boolean client;
+    int port = CompileServer.DEFAULT_PORT;
+
+    /**
+     * @throws IllegalArgumentException for unknown or incomplete arguments
+     */
+    Arguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--bare")) {
+                options.add(Option.BARE);
+            } else if (arg.equals("--minify")) {
+                options.add(Option.MINIFY);
+            } else if (arg.equals("--out")) {
+                outputDirectory = new File(valueOf(args, ++i, arg));
+            } else if (arg.equals("--manifest")) {
+                manifest = new File(valueOf(args, ++i, arg));
+            } else if (arg.equals("--threads")) {
+                threads = positive(valueOf(args, ++i, arg), arg);
+            } else if (arg.equals("--watch")) {
+                watch = true;
+            } else if (arg.equals("--server")) {
+                server = true;
+            } else if (arg.equals("--client")) {
+                client = true;
+            } else if (arg.equals("--port")) {
+                port = positive(valueOf(args, ++i, arg), arg);
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("unknown option " + arg);
+            } else {
+                inputs.add(new File(arg));
+            }
+        }
+        if (server && (client || !inputs.isEmpty())) {
+            throw new IllegalArgumentException("--server takes no files and no --client");
+        }
+        if (manifest != null && (outputDirectory == null || watch)) {
+            throw new IllegalArgumentException("--manifest needs --out and no --watch");
+        }
+        if (watch && inputs.isEmpty()) {
+            throw new IllegalArgumentException("--watch needs files or folders");
+        }
+        if (client && !inputs.isEmpty()) {
+            throw new IllegalArgumentException("--client compiles the standard input only");
+        }
+    }
+
+    boolean isBatch() {
+        return !inputs.isEmpty();
+    }
+
+    private static String valueOf(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException(option + " needs a value");
+        }
+        return args[i];
+    }
+
+    private static int positive(String value, String option) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(option + " needs a positive number: " + value);
+    }
+}
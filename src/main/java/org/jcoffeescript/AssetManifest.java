@@ -0,0 +1,134 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps the logical names of compiled files, like <code>app.js</code>, to
+ * names carrying a fingerprint of their content, like
+ * <code>app.3f9a1c2b.js</code>, so that they can be cached forever. The
+ * filter and the command line fingerprint the same content the same way.
+ */
+public class AssetManifest {
+
+    private static final int FINGERPRINT_LENGTH = 8;
+
+    private final ConcurrentMap<String, String> paths = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The name of the javascript under its fingerprint, the first characters
+     * of the hex encoded SHA-1 of its UTF-8 bytes.
+     */
+    public static String fingerprintedName(String logicalName, String javaScript) {
+        return fingerprintedNameForHash(logicalName, DiskCache.sha1(javaScript));
+    }
+
+    /**
+     * @param sha1 hex encoded SHA-1 of the UTF-8 bytes of the content
+     */
+    public static String fingerprintedNameForHash(String logicalName, String sha1) {
+        int extension = logicalName.lastIndexOf('.');
+        if (extension < 0 || extension < logicalName.lastIndexOf('/')) {
+            extension = logicalName.length();
+        }
+        return logicalName.substring(0, extension) + '.' + sha1.substring(0, FINGERPRINT_LENGTH)
+                + logicalName.substring(extension);
+    }
+
+    /**
+     * The logical name and fingerprint of a fingerprinted name, or null when
+     * the name carries no fingerprint.
+     */
+    public static String[] parseFingerprintedName(String name) {
+        int extension = name.lastIndexOf('.');
+        int fingerprint = extension - FINGERPRINT_LENGTH - 1;
+        if (fingerprint < 1 || name.charAt(fingerprint) != '.') {
+            return null;
+        }
+        for (int i = fingerprint + 1; i < extension; i++) {
+            if (Character.digit(name.charAt(i), 16) < 0) {
+                return null;
+            }
+        }
+        return new String[] {
+                name.substring(0, fingerprint) + name.substring(extension),
+                name.substring(fingerprint + 1, extension)
+        };
+    }
+
+    public void put(String logicalName, String fingerprintedName) {
+        paths.put(logicalName, fingerprintedName);
+    }
+
+    public void remove(String logicalName) {
+        paths.remove(logicalName);
+    }
+
+    /**
+     * The fingerprinted name, or the logical name itself when not known.
+     */
+    public String get(String logicalName) {
+        String fingerprintedName = paths.get(logicalName);
+        return fingerprintedName == null ? logicalName : fingerprintedName;
+    }
+
+    /**
+     * Fingerprinted names by logical name, sorted, e.g. for
+     * <code>${applicationScope.assetManifest.paths['app.js']}</code>.
+     */
+    public Map<String, String> getPaths() {
+        return Collections.unmodifiableMap(new TreeMap<String, String>(paths));
+    }
+
+    /**
+     * The manifest as a JSON object of fingerprinted names by logical name.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, String> path : getPaths().entrySet()) {
+            json.append(json.length() > 1 ? ",\n  " : "\n  ");
+            json.append(jsonString(path.getKey())).append(": ").append(jsonString(path.getValue()));
+        }
+        return json.append(json.length() > 1 ? "\n}\n" : "}\n").toString();
+    }
+
+    public void write(File file) throws IOException {
+        BatchCompiler.write(file, toJson());
+    }
+
+    private static String jsonString(String text) {
+        StringBuilder string = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                string.append('\\').append(c);
+            } else if (c < ' ') {
+                string.append(String.format("\\u%04x", (int) c));
+            } else {
+                string.append(c);
+            }
+        }
+        return string.append('"').toString();
+    }
+}
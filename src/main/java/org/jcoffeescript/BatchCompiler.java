@@ -0,0 +1,271 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles files and folder trees of CoffeeScript on several threads, each
+ * compiling with its own compiler. Files whose JavaScript is newer than the
+ * source, or whose source hash is unchanged, are skipped, and errors are
+ * reported without stopping the batch.
+ */
+/*default*/ class BatchCompiler {
+
+    private static final String COFFEE_SUFFIX = ".coffee";
+
+    private final JCoffeeScriptCompilerPool compilerPool;
+    private final File outputDirectory;
+    private final int threads;
+    private final PrintStream err;
+
+    private final AtomicInteger compiled = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private AssetManifest manifest;
+    private SourceHashes sourceHashes;
+
+    // modification time of the sources that failed, not compiled again until changed
+    private final ConcurrentMap<File, Long> failures = new ConcurrentHashMap<File, Long>();
+
+    /**
+     * @param outputDirectory where the folder layout of the sources is
+     *                        mirrored, or null to write each JavaScript file
+     *                        next to its source
+     */
+    BatchCompiler(Collection<Option> options, File outputDirectory, int threads, PrintStream err) {
+        this(new JCoffeeScriptCompilerPool(options, threads, Long.MAX_VALUE), outputDirectory, threads, err);
+    }
+
+    /**
+     * Compiles with the compilers of the given pool, which may be shared.
+     */
+    BatchCompiler(JCoffeeScriptCompilerPool compilerPool, File outputDirectory, int threads, PrintStream err) {
+        this.compilerPool = compilerPool;
+        this.outputDirectory = outputDirectory;
+        this.threads = threads;
+        this.err = err;
+    }
+
+    /**
+     * @return true when every file compiled
+     */
+    boolean compile(List<File> inputs) {
+        List<File[]> jobs = new ArrayList<File[]>();
+        for (File input : inputs) {
+            if (input.isDirectory()) {
+                collect(input, outputDirectory == null ? input : outputDirectory, jobs);
+            } else if (input.isFile()) {
+                File targetDirectory = outputDirectory == null ? input.getAbsoluteFile().getParentFile() : outputDirectory;
+                jobs.add(new File[] {input, new File(targetDirectory, javaScriptName(input))});
+            } else {
+                err.println(input + ": no such file or folder");
+                failed.incrementAndGet();
+            }
+        }
+        compileJobs(jobs);
+        return failed.get() == 0;
+    }
+
+    /**
+     * Compiles each source of the given pairs of source and target files.
+     */
+    void compileJobs(List<File[]> jobs) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (final File[] job : jobs) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    compile(job[0], job[1]);
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Also writes every compiled file under its fingerprinted name and
+     * records it in the manifest, by its path in the output folder.
+     */
+    void setManifest(AssetManifest manifest) {
+        if (outputDirectory == null) {
+            throw new IllegalStateException("a manifest needs an output folder");
+        }
+        this.manifest = manifest;
+    }
+
+    /**
+     * Skips the files whose source and options have the hash recorded for
+     * their target, rather than the files whose target is newer, and records
+     * the hash of every file compiled.
+     */
+    void setSourceHashes(SourceHashes sourceHashes) {
+        this.sourceHashes = sourceHashes;
+    }
+
+    int getCompiledCount() {
+        return compiled.get();
+    }
+
+    int getSkippedCount() {
+        return skipped.get();
+    }
+
+    int getFailedCount() {
+        return failed.get();
+    }
+
+    void compile(File source, File target) {
+        long lastModified = source.lastModified();
+        String coffeeScriptSource = null;
+        String hash = null;
+        boolean upToDate;
+        if (sourceHashes == null) {
+            upToDate = target.lastModified() >= lastModified;
+        } else {
+            try {
+                coffeeScriptSource = Sources.read(source, "UTF-8");
+            } catch (IOException e) {
+                err.println(source + ": " + e);
+                failed.incrementAndGet();
+                return;
+            }
+            hash = sourceHashes.hash(coffeeScriptSource);
+            upToDate = sourceHashes.isUpToDate(target, hash);
+        }
+        if (upToDate) {
+            try {
+                if (manifest != null) {
+                    fingerprint(target, Sources.read(target, "UTF-8"));
+                }
+                skipped.incrementAndGet();
+            } catch (IOException e) {
+                err.println(target + ": " + e);
+                failed.incrementAndGet();
+            }
+            return;
+        }
+        Long failedVersion = failures.get(source);
+        if (failedVersion != null && failedVersion == lastModified) {
+            // already reported
+            failed.incrementAndGet();
+            return;
+        }
+        try {
+            if (coffeeScriptSource == null) {
+                coffeeScriptSource = Sources.read(source, "UTF-8");
+            }
+            String javaScript = compilerPool.compile(coffeeScriptSource);
+            write(target, javaScript);
+            if (manifest != null) {
+                fingerprint(target, javaScript);
+            }
+            if (sourceHashes != null) {
+                sourceHashes.put(target, hash);
+            }
+            failures.remove(source);
+            compiled.incrementAndGet();
+        } catch (JCoffeeScriptCompileException e) {
+            err.println(e.getMessage(source.getPath()));
+            if (sourceHashes != null) {
+                sourceHashes.remove(target);
+            }
+            failures.put(source, lastModified);
+            failed.incrementAndGet();
+        } catch (IOException e) {
+            err.println(source + ": " + e);
+            failed.incrementAndGet();
+        }
+    }
+
+    private void fingerprint(File target, String javaScript) throws IOException {
+        String logicalName = target.getAbsolutePath().substring(outputDirectory.getAbsolutePath().length() + 1)
+                .replace(File.separatorChar, '/');
+        String fingerprintedName = AssetManifest.fingerprintedName(logicalName, javaScript);
+        File fingerprinted = new File(outputDirectory, fingerprintedName);
+        if (!fingerprinted.exists()) {
+            write(fingerprinted, javaScript);
+        }
+        manifest.put(logicalName, fingerprintedName);
+    }
+
+    private void collect(File directory, File targetDirectory, List<File[]> jobs) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collect(file, new File(targetDirectory, file.getName()), jobs);
+            } else if (file.getName().endsWith(COFFEE_SUFFIX)) {
+                jobs.add(new File[] {file, new File(targetDirectory, javaScriptName(file))});
+            }
+        }
+    }
+
+    static String javaScriptName(File source) {
+        String name = source.getName();
+        if (name.endsWith(COFFEE_SUFFIX)) {
+            name = name.substring(0, name.length() - COFFEE_SUFFIX.length());
+        }
+        return name + ".js";
+    }
+
+    /**
+     * Writes to a temporary file renamed into place, so readers never see a
+     * partly written file.
+     */
+    static void write(File file, String content) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        directory.mkdirs();
+        File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8");
+            try {
+                writer.write(content);
+            } finally {
+                writer.close();
+            }
+            // renaming over an existing file fails on some platforms
+            if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+                throw new IOException("cannot write " + file);
+            }
+        } finally {
+            temporary.delete();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+/**
+ * A JavaScript engine running the bundled CoffeeScript compiler. Each
+ * {@link JCoffeeScriptCompiler} owns one engine, which does not need to be
+ * thread safe.
+ * <p>
+ * The engine is chosen with the <code>org.jcoffeescript.engine</code> system
+ * property: <code>rhino</code> (the default) or the name of a javax.script
+ * engine, such as <code>graal.js</code> or <code>nashorn</code>.
+ */
+public interface CoffeeScriptEngine {
+
+    /**
+     * Compiles CoffeeScript to JavaScript. CoffeeScript errors are reported
+     * with the message of the JavaScript error, like
+     * <code>Error: unclosed [ on line 1</code>.
+     */
+    String compile(String coffeeScriptSource, Options options) throws JCoffeeScriptCompileException;
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Build time tool compiling the bundled coffee-script.js to class files, used
+ * when the compiler runs with <code>-Dorg.jcoffeescript.mode=compiled</code>.
+ * The only argument is the folder receiving the classes.
+ */
+public class CoffeeScriptPrecompiler {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: CoffeeScriptPrecompiler <classes folder>");
+            System.exit(1);
+        }
+        new CoffeeScriptPrecompiler().precompile(new File(args[0]));
+    }
+
+    public void precompile(File classesFolder) throws IOException {
+        String compilerSource = CoffeeScriptRuntime.splitParserTable(CoffeeScriptRuntime.readCompilerSource())[1];
+
+        CompilerEnvirons environment = new CompilerEnvirons();
+        environment.setOptimizationLevel(9);
+        Object[] classes = new ClassCompiler(environment).compileToClassFiles(compilerSource, "coffee-script.js", 0,
+                CoffeeScriptRuntime.PRECOMPILED_CLASS);
+
+        // classes come as pairs of class name and bytecode
+        for (int i = 0; i < classes.length; i += 2) {
+            File classFile = new File(classesFolder, ((String) classes[i]).replace('.', File.separatorChar) + ".class");
+            classFile.getParentFile().mkdirs();
+            OutputStream out = new FileOutputStream(classFile);
+            try {
+                out.write((byte[]) classes[i + 1]);
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * The bundled coffee-script.js, parsed once per process, together with a
+ * sealed scope holding the JavaScript standard objects. Compilers get their
+ * own global scope on top of the shared one, so bootstrapping a compiler only
+ * runs the already parsed script instead of reading and parsing it again.
+ */
+/*default*/ class CoffeeScriptRuntime {
+
+    /**
+     * System property selecting how the shared runtime runs coffee-script.js:
+     * "interpreted" (the default) or "compiled".
+     */
+    static final String MODE_PROPERTY = "org.jcoffeescript.mode";
+
+    static final String PRECOMPILED_CLASS = "org.jcoffeescript.precompiled.CoffeeScript";
+
+    private static final String PARSER_TABLE = "__jcoffeescriptParserTable";
+
+    enum Mode {
+        /**
+         * coffee-script.js runs in Rhino's interpreter.
+         */
+        INTERPRETED,
+        /**
+         * coffee-script.js is compiled to JVM bytecode, except for the parser
+         * table, which alone exceeds the 64K method limit and stays interpreted.
+         * Classes generated at build time by {@link CoffeeScriptPrecompiler}
+         * are used when available, otherwise the script is compiled on load.
+         */
+        COMPILED
+    }
+
+    private static class Shared {
+        static final CoffeeScriptRuntime INSTANCE = load(modeFromSystemProperty());
+    }
+
+    private final ScriptableObject sharedScope;
+    private final Script parserTableScript;
+    private final Script compilerScript;
+
+    private CoffeeScriptRuntime(ScriptableObject sharedScope, Script parserTableScript, Script compilerScript) {
+        this.sharedScope = sharedScope;
+        this.parserTableScript = parserTableScript;
+        this.compilerScript = compilerScript;
+    }
+
+    static CoffeeScriptRuntime getShared() {
+        return Shared.INSTANCE;
+    }
+
+    static Mode modeFromSystemProperty() {
+        String mode = System.getProperty(MODE_PROPERTY, Mode.INTERPRETED.name());
+        try {
+            return Mode.valueOf(mode.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown " + MODE_PROPERTY + ": " + mode, e);
+        }
+    }
+
+    /**
+     * Reads and parses coffee-script.js from the classpath, bypassing the
+     * shared instance.
+     */
+    static CoffeeScriptRuntime load(Mode mode) {
+        String source = readCompilerSource();
+        Context context = Context.enter();
+        context.setOptimizationLevel(-1); // Without this, Rhino hits a 64K bytecode limit and fails
+        try {
+            ScriptableObject sharedScope = context.initStandardObjects(null, true);
+            if (mode == Mode.INTERPRETED) {
+                return new CoffeeScriptRuntime(sharedScope, null,
+                        context.compileString(source, "coffee-script.js", 0, null));
+            }
+
+            String[] parts = splitParserTable(source);
+            Script parserTableScript = context.compileString(parts[0], "coffee-script.js", 0, null);
+            Script compilerScript = loadPrecompiledScript();
+            if (compilerScript == null) {
+                context.setOptimizationLevel(9);
+                compilerScript = context.compileString(parts[1], "coffee-script.js", 0, null);
+            }
+            return new CoffeeScriptRuntime(sharedScope, parserTableScript, compilerScript);
+        } finally {
+            Context.exit();
+        }
+    }
+
+    /**
+     * Creates a new global scope, backed by the shared standard objects, in
+     * which the CoffeeScript compiler has been initialized.
+     */
+    Scriptable newGlobalScope() {
+        Context context = Context.enter();
+        context.setOptimizationLevel(-1);
+        try {
+            Scriptable globalScope = context.newObject(sharedScope);
+            globalScope.setPrototype(sharedScope);
+            globalScope.setParentScope(null);
+            if (parserTableScript != null) {
+                parserTableScript.exec(context, globalScope);
+            }
+            compilerScript.exec(context, globalScope);
+            globalScope.delete(PARSER_TABLE);
+            return globalScope;
+        } finally {
+            Context.exit();
+        }
+    }
+
+    static String readCompilerSource() {
+        ClassLoader classLoader = CoffeeScriptRuntime.class.getClassLoader();
+        InputStream inputStream = classLoader.getResourceAsStream("org/jcoffeescript/coffee-script.js");
+        try {
+            try {
+                Reader reader = new InputStreamReader(inputStream, "UTF-8");
+                try {
+                    StringBuilder source = new StringBuilder();
+                    char[] buffer = new char[8192];
+                    int n;
+                    while ((n = reader.read(buffer)) != -1) {
+                        source.append(buffer, 0, n);
+                    }
+                    return source.toString();
+                } finally {
+                    reader.close();
+                }
+            } catch (UnsupportedEncodingException e) {
+                throw new Error(e); // This should never happen
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            throw new Error(e); // This should never happen
+        }
+    }
+
+    /**
+     * Moves the parser table literal out of coffee-script.js into a script of
+     * its own, so that what is left compiles to methods under 64K.
+     *
+     * @return the parser table script and the remaining compiler script
+     */
+    static String[] splitParserTable(String source) {
+        int parser = source.indexOf("require[\"./parser\"]");
+        int table = parser < 0 ? -1 : source.indexOf("table:[", parser);
+        if (table < 0) {
+            throw new IllegalStateException("parser table not found in coffee-script.js");
+        }
+        int start = table + "table:".length();
+        int depth = 0;
+        for (int end = start; end < source.length(); end++) {
+            char c = source.charAt(end);
+            if (c == '[') {
+                depth++;
+            } else if (c == ']' && --depth == 0) {
+                return new String[] {
+                        "this." + PARSER_TABLE + " = " + source.substring(start, end + 1) + ";",
+                        source.substring(0, start) + PARSER_TABLE + source.substring(end + 1)
+                };
+            }
+        }
+        throw new IllegalStateException("unterminated parser table in coffee-script.js");
+    }
+
+    private static Script loadPrecompiledScript() {
+        try {
+            Class<?> scriptClass = Class.forName(PRECOMPILED_CLASS, true, CoffeeScriptRuntime.class.getClassLoader());
+            return (Script) scriptClass.newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (InstantiationException e) {
+            throw new Error(e);
+        } catch (IllegalAccessException e) {
+            throw new Error(e);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jcoffeescript;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.LogOutputStream;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.Mapper;
+import org.apache.tools.ant.util.FileNameMapper;
+import org.apache.tools.ant.util.GlobPatternMapper;
+
+/**
+ * Ant task compiling CoffeeScript files in the Ant JVM:
+ * <pre>
+ * &lt;taskdef name="coffeescript" classname="org.jcoffeescript.CoffeeScriptTask" classpath="jcoffeescript-1.0.jar"/&gt;
+ * &lt;coffeescript destdir="target/js" bare="true" hashfile="target/js.sha1"&gt;
+ *     &lt;fileset dir="src/coffee" includes="**&#47;*.coffee"/&gt;
+ * &lt;/coffeescript&gt;
+ * </pre>
+ * Files are mapped to their JavaScript by a nested mapper, *.coffee to *.js
+ * by default. Compilers are shared by every task of the build with the same
+ * options, so they are warm after the first one, also across the threads of
+ * a parallel task. Without a hash file, files whose JavaScript is newer than
+ * the source are skipped.
+ */
+public class CoffeeScriptTask extends Task {
+
+    private static final ConcurrentMap<Set<Option>, JCoffeeScriptCompilerPool> COMPILER_POOLS =
+            new ConcurrentHashMap<Set<Option>, JCoffeeScriptCompilerPool>();
+
+    private final List<FileSet> fileSets = new ArrayList<FileSet>();
+    private Mapper mapper;
+    private File destDir;
+    private File hashFile;
+    private boolean bare;
+    private boolean minify;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean failOnError = true;
+
+    public void addFileset(FileSet fileSet) {
+        fileSets.add(fileSet);
+    }
+
+    public Mapper createMapper() {
+        if (mapper != null) {
+            throw new BuildException("only one mapper is allowed", getLocation());
+        }
+        mapper = new Mapper(getProject());
+        return mapper;
+    }
+
+    public void add(FileNameMapper fileNameMapper) {
+        createMapper().add(fileNameMapper);
+    }
+
+    /**
+     * Folder receiving the JavaScript, the folder of each fileset when not set.
+     */
+    public void setDestdir(File destDir) {
+        this.destDir = destDir;
+    }
+
+    /**
+     * File recording the hash each JavaScript file was compiled from.
+     */
+    public void setHashfile(File hashFile) {
+        this.hashFile = hashFile;
+    }
+
+    public void setBare(boolean bare) {
+        this.bare = bare;
+    }
+
+    public void setMinify(boolean minify) {
+        this.minify = minify;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setFailonerror(boolean failOnError) {
+        this.failOnError = failOnError;
+    }
+
+    @Override
+    public void execute() {
+        if (threads < 1) {
+            throw new BuildException("threads must be positive", getLocation());
+        }
+        Collection<Option> options = new LinkedList<Option>();
+        if (bare) {
+            options.add(Option.BARE);
+        }
+        if (minify) {
+            options.add(Option.MINIFY);
+        }
+
+        FileNameMapper fileNameMapper = fileNameMapper();
+        List<File[]> jobs = new ArrayList<File[]>();
+        for (FileSet fileSet : fileSets) {
+            DirectoryScanner scanner = fileSet.getDirectoryScanner(getProject());
+            File sourceDir = fileSet.getDir(getProject());
+            File targetDir = destDir == null ? sourceDir : destDir;
+            for (String name : scanner.getIncludedFiles()) {
+                String[] targets = fileNameMapper.mapFileName(name);
+                if (targets != null) {
+                    for (String target : targets) {
+                        jobs.add(new File[] {new File(sourceDir, name), new File(targetDir, target)});
+                    }
+                }
+            }
+        }
+
+        PrintStream err = new PrintStream(new LogOutputStream(this, Project.MSG_ERR), true);
+        BatchCompiler batch = new BatchCompiler(compilerPool(options), destDir, threads, err);
+        SourceHashes sourceHashes = null;
+        try {
+            if (hashFile != null) {
+                sourceHashes = SourceHashes.load(hashFile, options);
+                batch.setSourceHashes(sourceHashes);
+            }
+            batch.compileJobs(jobs);
+            if (sourceHashes != null) {
+                sourceHashes.save();
+            }
+        } catch (IOException e) {
+            throw new BuildException("cannot read or write " + hashFile + ": " + e.getMessage(), e, getLocation());
+        } finally {
+            err.close();
+        }
+
+        log(String.format("compiled %d, skipped %d, failed %d",
+                batch.getCompiledCount(), batch.getSkippedCount(), batch.getFailedCount()));
+        if (batch.getFailedCount() > 0 && failOnError) {
+            throw new BuildException(batch.getFailedCount() + " CoffeeScript files failed to compile", getLocation());
+        }
+    }
+
+    private FileNameMapper fileNameMapper() {
+        if (mapper != null) {
+            return mapper.getImplementation();
+        }
+        GlobPatternMapper coffeeToJavaScript = new GlobPatternMapper();
+        coffeeToJavaScript.setFrom("*.coffee");
+        coffeeToJavaScript.setTo("*.js");
+        return coffeeToJavaScript;
+    }
+
+    /**
+     * The shared pool of the options, replaced by a bigger one when a task
+     * runs more threads than it has compilers, so there is at most one pool
+     * per combination of options.
+     */
+    private JCoffeeScriptCompilerPool compilerPool(Collection<Option> options) {
+        Set<Option> key = EnumSet.noneOf(Option.class);
+        key.addAll(options);
+        while (true) {
+            JCoffeeScriptCompilerPool compilerPool = COMPILER_POOLS.get(key);
+            if (compilerPool != null && compilerPool.getSize() >= threads) {
+                return compilerPool;
+            }
+            JCoffeeScriptCompilerPool bigger = new JCoffeeScriptCompilerPool(options, threads, Long.MAX_VALUE);
+            if (compilerPool == null
+                    ? COMPILER_POOLS.putIfAbsent(key, bigger) == null
+                    : COMPILER_POOLS.replace(key, compilerPool, bigger)) {
+                return bigger;
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collection;
+
+/**
+ * Sends compilations to a {@link CompileServer} over a single connection.
+ */
+/*default*/ class CompileClient {
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    CompileClient(int port) throws IOException {
+        socket = new Socket(InetAddress.getByName(null), port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    String compile(String coffeeScriptSource, Collection<Option> options) throws IOException, JCoffeeScriptCompileException {
+        CompileServer.writeString(out, CompileServer.formatOptions(options));
+        CompileServer.writeString(out, coffeeScriptSource);
+        out.flush();
+
+        byte status = in.readByte();
+        String result = CompileServer.readString(in);
+        if (status != CompileServer.COMPILED) {
+            throw new JCoffeeScriptCompileException(result);
+        }
+        return result;
+    }
+
+    void close() throws IOException {
+        socket.close();
+    }
+}
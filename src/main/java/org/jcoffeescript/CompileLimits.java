@@ -0,0 +1,100 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jcoffeescript;
+
+/**
+ * Bounds on a single compilation, so that a huge or pathological source
+ * fails fast instead of keeping a compiler busy. Zero means no limit.
+ * <p>
+ * The time and instruction budgets are checked by the Rhino engine while it
+ * interprets the CoffeeScript compiler, which is the default mode; other
+ * engines and the compiled mode only check the lengths.
+ */
+public class CompileLimits {
+
+    public static final CompileLimits NONE = new CompileLimits(0, 0, 0, 0);
+
+    private final int maxSourceLength;
+    private final long maxMillis;
+    private final long maxInstructions;
+    private final int maxJavaScriptLength;
+
+    /**
+     * @param maxSourceLength     maximum number of characters of CoffeeScript
+     * @param maxMillis           maximum wall-clock time spent in the engine
+     * @param maxInstructions     maximum number of JavaScript instructions
+     *                            run by the engine
+     * @param maxJavaScriptLength maximum number of characters of JavaScript
+     */
+    public CompileLimits(int maxSourceLength, long maxMillis, long maxInstructions, int maxJavaScriptLength) {
+        this.maxSourceLength = maxSourceLength;
+        this.maxMillis = maxMillis;
+        this.maxInstructions = maxInstructions;
+        this.maxJavaScriptLength = maxJavaScriptLength;
+    }
+
+    public int getMaxSourceLength() {
+        return maxSourceLength;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    public long getMaxInstructions() {
+        return maxInstructions;
+    }
+
+    public int getMaxJavaScriptLength() {
+        return maxJavaScriptLength;
+    }
+
+    /**
+     * Whether every limit is checked by the engine and mode selected by the
+     * system properties, which is not the case of the budgets outside of
+     * interpreted Rhino.
+     */
+    public boolean isEnforced() {
+        if (!hasBudget()) {
+            return true;
+        }
+        String engineName = System.getProperty(JCoffeeScriptCompiler.ENGINE_PROPERTY, "rhino").trim();
+        return engineName.equalsIgnoreCase("rhino")
+                && CoffeeScriptRuntime.modeFromSystemProperty() == CoffeeScriptRuntime.Mode.INTERPRETED;
+    }
+
+    boolean hasBudget() {
+        return maxMillis > 0 || maxInstructions > 0;
+    }
+
+    void checkSource(String coffeeScriptSource) throws JCoffeeScriptLimitExceededException {
+        if (maxSourceLength > 0 && coffeeScriptSource.length() > maxSourceLength) {
+            throw new JCoffeeScriptLimitExceededException(JCoffeeScriptLimitExceededException.Limit.SOURCE_LENGTH,
+                    String.format("source of %d characters is over the limit of %d",
+                            coffeeScriptSource.length(), maxSourceLength));
+        }
+    }
+
+    void checkJavaScript(String javaScript) throws JCoffeeScriptLimitExceededException {
+        if (maxJavaScriptLength > 0 && javaScript.length() > maxJavaScriptLength) {
+            throw new JCoffeeScriptLimitExceededException(JCoffeeScriptLimitExceededException.Limit.JAVASCRIPT_LENGTH,
+                    String.format("javascript of %d characters is over the limit of %d",
+                            javaScript.length(), maxJavaScriptLength));
+        }
+    }
+}
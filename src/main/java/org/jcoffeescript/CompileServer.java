@@ -0,0 +1,202 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Compiles for other processes over a socket bound to the loopback interface,
+ * keeping warm compilers between requests. Each connection carries any number
+ * of requests, answered in order:
+ * <pre>
+ * request:  options (comma separated Option names), source
+ * response: status byte (0 compiled, 1 error), javascript or error message
+ * </pre>
+ * Strings are sent as a 4 byte big endian length followed by as many UTF-8
+ * bytes.
+ */
+/*default*/ class CompileServer implements Runnable {
+
+    static final int DEFAULT_PORT = 9876;
+
+    static final byte COMPILED = 0;
+    static final byte ERROR = 1;
+
+    private static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final JCoffeeScriptCompilerPool compilerPool;
+    // by normalized set, so clients cannot grow it with spellings of the same options
+    private final ConcurrentMap<Set<Option>, Options> options = new ConcurrentHashMap<Set<Option>, Options>();
+    private final ExecutorService connections = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "jcoffeescript-connection");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * @param port the port to listen on, or 0 for any free one
+     */
+    CompileServer(int port, JCoffeeScriptCompilerPool compilerPool) throws IOException {
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+        this.compilerPool = compilerPool;
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts connections until closed.
+     */
+    public void run() {
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                connections.execute(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            if (!serverSocket.isClosed()) {
+                System.err.println("compile server stopped: " + e);
+            }
+        } finally {
+            connections.shutdownNow();
+        }
+    }
+
+    void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                while (true) {
+                    String optionNames;
+                    try {
+                        optionNames = readString(in);
+                    } catch (EOFException e) {
+                        return; // the client is done
+                    }
+                    String source = readString(in);
+                    try {
+                        String javaScript = compilerPool.compile(source, options(optionNames));
+                        out.writeByte(COMPILED);
+                        writeString(out, javaScript);
+                    } catch (JCoffeeScriptCompileException e) {
+                        out.writeByte(ERROR);
+                        writeString(out, e.getMessage());
+                    } catch (RuntimeException e) {
+                        // a bug or an engine failure fails this request only
+                        out.writeByte(ERROR);
+                        writeString(out, e.toString());
+                    }
+                    out.flush();
+                }
+            } finally {
+                socket.close();
+            }
+        } catch (SocketException e) {
+            // the client went away
+        } catch (IOException e) {
+            System.err.println("compile server connection failed: " + e);
+        }
+    }
+
+    private Options options(String optionNames) throws JCoffeeScriptCompileException {
+        Set<Option> key = EnumSet.noneOf(Option.class);
+        try {
+            key.addAll(parseOptions(optionNames));
+        } catch (IllegalArgumentException e) {
+            throw new JCoffeeScriptCompileException("unknown option in " + optionNames);
+        }
+        Options parsed = options.get(key);
+        if (parsed == null) {
+            parsed = new Options(key);
+            options.put(key, parsed);
+        }
+        return parsed;
+    }
+
+    static String formatOptions(Collection<Option> options) {
+        StringBuilder names = new StringBuilder();
+        for (Option option : options) {
+            if (names.length() > 0) {
+                names.append(',');
+            }
+            names.append(option.name());
+        }
+        return names.toString();
+    }
+
+    static Collection<Option> parseOptions(String optionNames) {
+        Collection<Option> parsed = new ArrayList<Option>();
+        for (String name : optionNames.split(",")) {
+            if (name.trim().length() > 0) {
+                parsed.add(Option.valueOf(name.trim()));
+            }
+        }
+        return parsed;
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IOException("invalid message length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    static void writeString(DataOutputStream out, String string) throws IOException {
+        try {
+            byte[] bytes = string.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } catch (UnsupportedEncodingException e) {
+            throw new Error(e); // This should never happen
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+/**
+ * Receives the timings and sizes of compilations, e.g. to feed a metrics
+ * system. Called on the compiling thread, so implementations must be fast and
+ * thread safe.
+ *
+ * @see CompilerStatistics
+ */
+public interface CompilerListener {
+
+    void compiled(long nanos, int sourceLength, int javaScriptLength);
+
+    void failed(long nanos, int sourceLength);
+
+    /**
+     * Time a caller waited for a compiler of a {@link JCoffeeScriptCompilerPool}.
+     */
+    void waited(long nanos);
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jcoffeescript;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A step the compiled JavaScript goes through before the compiler returns it,
+ * like {@link JavaScriptMinifier}. Stages are chained as writers, so a
+ * {@link Pipeline} of any length reads the JavaScript only once.
+ */
+public interface CompilerStage {
+
+    /**
+     * A writer taking the input of this stage and writing its output to the
+     * given writer. Closing it must write what is left and close the given
+     * writer. It is used by a single thread.
+     */
+    Writer open(Writer output) throws IOException;
+}
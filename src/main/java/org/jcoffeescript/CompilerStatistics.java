@@ -0,0 +1,123 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts compilations with lock free counters. Register it as a listener of
+ * compilers and pools, and with an MBean server to watch it over JMX.
+ */
+public class CompilerStatistics implements CompilerListener, CompilerStatisticsMBean {
+
+    private static final long[] LATENCY_BOUNDS_MILLIS = {1, 5, 10, 50, 100, 500, 1000, 5000, 10000};
+
+    private final AtomicLong compilations = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong compileNanos = new AtomicLong();
+    private final AtomicLongArray latencyHistogram = new AtomicLongArray(LATENCY_BOUNDS_MILLIS.length + 1);
+    private final AtomicLong sourceLength = new AtomicLong();
+    private final AtomicLong javaScriptLength = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    public void compiled(long nanos, int sourceLength, int javaScriptLength) {
+        compilations.incrementAndGet();
+        compileNanos.addAndGet(nanos);
+        latencyHistogram.incrementAndGet(bucket(nanos));
+        this.sourceLength.addAndGet(sourceLength);
+        this.javaScriptLength.addAndGet(javaScriptLength);
+    }
+
+    public void failed(long nanos, int sourceLength) {
+        errors.incrementAndGet();
+        this.sourceLength.addAndGet(sourceLength);
+    }
+
+    public void waited(long nanos) {
+        waits.incrementAndGet();
+        waitNanos.addAndGet(nanos);
+    }
+
+    public long getCompileCount() {
+        return compilations.get();
+    }
+
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    public long getTotalCompileMillis() {
+        return compileNanos.get() / 1000000;
+    }
+
+    public double getAverageCompileMillis() {
+        long count = compilations.get();
+        return count == 0 ? 0 : compileNanos.get() / 1000000.0 / count;
+    }
+
+    public long[] getLatencyHistogram() {
+        long[] histogram = new long[latencyHistogram.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = latencyHistogram.get(i);
+        }
+        return histogram;
+    }
+
+    public long[] getLatencyHistogramBoundsMillis() {
+        return LATENCY_BOUNDS_MILLIS.clone();
+    }
+
+    public long getSourceLength() {
+        return sourceLength.get();
+    }
+
+    public long getJavaScriptLength() {
+        return javaScriptLength.get();
+    }
+
+    public long getWaitCount() {
+        return waits.get();
+    }
+
+    public long getTotalWaitMillis() {
+        return waitNanos.get() / 1000000;
+    }
+
+    public void reset() {
+        compilations.set(0);
+        errors.set(0);
+        compileNanos.set(0);
+        for (int i = 0; i < latencyHistogram.length(); i++) {
+            latencyHistogram.set(i, 0);
+        }
+        sourceLength.set(0);
+        javaScriptLength.set(0);
+        waits.set(0);
+        waitNanos.set(0);
+    }
+
+    private static int bucket(long nanos) {
+        long millis = nanos / 1000000;
+        int bucket = 0;
+        while (bucket < LATENCY_BOUNDS_MILLIS.length && millis > LATENCY_BOUNDS_MILLIS[bucket]) {
+            bucket++;
+        }
+        return bucket;
+    }
+}
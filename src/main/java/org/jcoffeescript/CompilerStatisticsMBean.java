@@ -0,0 +1,51 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+/**
+ * JMX view of {@link CompilerStatistics}. Lengths are in characters, times
+ * in milliseconds.
+ */
+public interface CompilerStatisticsMBean {
+
+    long getCompileCount();
+
+    long getErrorCount();
+
+    long getTotalCompileMillis();
+
+    double getAverageCompileMillis();
+
+    /**
+     * Compilations per latency bucket, the bounds of which are given by
+     * {@link #getLatencyHistogramBoundsMillis()}; the last bucket counts the
+     * slower ones.
+     */
+    long[] getLatencyHistogram();
+
+    long[] getLatencyHistogramBoundsMillis();
+
+    long getSourceLength();
+
+    long getJavaScriptLength();
+
+    long getWaitCount();
+
+    long getTotalWaitMillis();
+
+    void reset();
+}
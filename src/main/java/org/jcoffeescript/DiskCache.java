@@ -0,0 +1,240 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps compiled JavaScript on disk between JVM runs. Entries are keyed by a
+ * hash of the CoffeeScript source, the compile options and the bundled
+ * coffee-script.js, so they never need invalidation; the oldest ones are
+ * deleted when the directory grows past its maximum size.
+ * <p>
+ * Files are written to a temporary name and renamed into place, so several
+ * JVMs can share the same directory.
+ */
+public class DiskCache {
+
+    /**
+     * System property naming the cache directory used by compilers created
+     * without an explicit cache.
+     */
+    public static final String DIRECTORY_PROPERTY = "org.jcoffeescript.cacheDirectory";
+    public static final String MAX_BYTES_PROPERTY = "org.jcoffeescript.cacheMaxBytes";
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private static final String SUFFIX = ".js";
+
+    private static class CompilerVersion {
+        static final String HASH = sha1(CoffeeScriptRuntime.readCompilerSource());
+    }
+
+    private static DiskCache fromSystemProperties;
+
+    private final File directory;
+    private final long maxBytes;
+    private final AtomicLong estimatedBytes = new AtomicLong(-1);
+
+    public DiskCache(File directory) {
+        this(directory, DEFAULT_MAX_BYTES);
+    }
+
+    public DiskCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * The cache configured by system properties, or null when
+     * {@value #DIRECTORY_PROPERTY} is not set.
+     */
+    static synchronized DiskCache fromSystemProperties() {
+        String directory = System.getProperty(DIRECTORY_PROPERTY);
+        if (directory == null || directory.trim().equals("")) {
+            return null;
+        }
+        if (fromSystemProperties == null) {
+            long maxBytes = Long.parseLong(System.getProperty(MAX_BYTES_PROPERTY, String.valueOf(DEFAULT_MAX_BYTES)));
+            fromSystemProperties = new DiskCache(new File(directory.trim()), maxBytes);
+        }
+        return fromSystemProperties;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the cached JavaScript, or null when it is not in the cache
+     */
+    public String get(String coffeeScriptSource, Options options) {
+        File file = fileFor(coffeeScriptSource, options);
+        try {
+            String javaScript = Sources.read(file, "UTF-8");
+            // keeps recently used entries away from eviction
+            file.setLastModified(System.currentTimeMillis());
+            return javaScript;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            return null; // a broken entry is just a miss
+        }
+    }
+
+    public void put(String coffeeScriptSource, Options options, String javaScript) {
+        File file = fileFor(coffeeScriptSource, options);
+        try {
+            directory.mkdirs();
+            File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+            try {
+                write(temporary, javaScript);
+                if (!temporary.renameTo(file)) {
+                    // another JVM already stored the same entry
+                    return;
+                }
+            } finally {
+                temporary.delete();
+            }
+        } catch (IOException e) {
+            return; // the cache is only an optimization
+        }
+
+        if (estimatedBytes.get() < 0) {
+            estimatedBytes.compareAndSet(-1, directorySize());
+        } else {
+            estimatedBytes.addAndGet(file.length());
+        }
+        if (estimatedBytes.get() > maxBytes) {
+            try {
+                evict();
+            } catch (RuntimeException e) {
+                return; // the cache is only an optimization
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits in its
+     * maximum size.
+     */
+    synchronized void evict() {
+        // times are read once, since hits touch the files while sorting
+        File[] files = entries();
+        Entry[] entries = new Entry[files.length];
+        long size = 0;
+        for (int i = 0; i < files.length; i++) {
+            entries[i] = new Entry(files[i]);
+            size += entries[i].length;
+        }
+        Arrays.sort(entries);
+
+        for (int i = 0; i < entries.length && size > maxBytes; i++) {
+            if (entries[i].file.delete()) {
+                size -= entries[i].length;
+            }
+        }
+        estimatedBytes.set(size);
+    }
+
+    String keyFor(String coffeeScriptSource, Options options) {
+        return sha1(CompilerVersion.HASH + '\0' + options.toJavaScript() + '\0' + coffeeScriptSource);
+    }
+
+    /**
+     * Hash of the bundled coffee-script.js, telling compiler versions apart.
+     */
+    static String compilerVersion() {
+        return CompilerVersion.HASH;
+    }
+
+    private File fileFor(String coffeeScriptSource, Options options) {
+        return new File(directory, keyFor(coffeeScriptSource, options) + SUFFIX);
+    }
+
+    private long directorySize() {
+        long size = 0;
+        for (File entry : entries()) {
+            size += entry.length();
+        }
+        return size;
+    }
+
+    private File[] entries() {
+        File[] entries = directory.listFiles();
+        if (entries == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File entry : entries) {
+            if (entry.getName().endsWith(SUFFIX)) {
+                entries[count++] = entry;
+            }
+        }
+        return Arrays.copyOf(entries, count);
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    static String sha1(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e); // This should never happen
+        } catch (UnsupportedEncodingException e) {
+            throw new Error(e); // This should never happen
+        }
+    }
+
+    private static class Entry implements Comparable<Entry> {
+
+        final File file;
+        final long lastModified;
+        final long length;
+
+        Entry(File file) {
+            this.file = file;
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+        }
+
+        public int compareTo(Entry other) {
+            return lastModified < other.lastModified ? -1 : (lastModified > other.lastModified ? 1 : 0);
+        }
+    }
+}
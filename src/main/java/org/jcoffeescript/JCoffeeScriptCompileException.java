@@ -16,12 +16,63 @@
 
 package org.jcoffeescript;
 
-import org.mozilla.javascript.JavaScriptException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class JCoffeeScriptCompileException extends Exception {
 
-    JCoffeeScriptCompileException (JavaScriptException e) {
-        super(e.getValue().toString(), e);
+    private static final Pattern LINE = Pattern.compile("\\bline (\\d+)");
+    private static final Pattern COLUMN = Pattern.compile("\\bcolumn (\\d+)");
+
+    private final int line;
+    private final int column;
+
+    public JCoffeeScriptCompileException (String message, Throwable cause) {
+        super(message, cause);
+        this.line = find(LINE, message);
+        this.column = find(COLUMN, message);
+    }
+
+    JCoffeeScriptCompileException (String message) {
+        super(message);
+        this.line = find(LINE, message);
+        this.column = find(COLUMN, message);
+    }
+
+    /**
+     * The line of the error in the CoffeeScript source, starting at 1, or -1
+     * when the compiler did not tell.
+     */
+    public int getLine() {
+        return line;
+    }
+
+    /**
+     * The column of the error, starting at 1, or -1 when the compiler did not
+     * tell (CoffeeScript 1.0 only reports lines).
+     */
+    public int getColumn() {
+        return column;
+    }
+
+    /**
+     * The message prefixed with the file name and location, as in
+     * <code>foo.coffee:3: Parse error on line 3: ...</code>.
+     */
+    public String getMessage(String fileName) {
+        StringBuilder message = new StringBuilder(fileName);
+        if (line > 0) {
+            message.append(':').append(line);
+            if (column > 0) {
+                message.append(':').append(column);
+            }
+        }
+        return message.append(": ").append(getMessage()).toString();
+    }
+
+    private static int find(Pattern pattern, String message) {
+        Matcher matcher = message == null ? null : pattern.matcher(message);
+        return matcher != null && matcher.find() ? Integer.parseInt(matcher.group(1)) : -1;
     }
 
 }
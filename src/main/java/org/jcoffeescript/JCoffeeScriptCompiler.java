@@ -16,73 +16,179 @@
 
 package org.jcoffeescript;
 
-import org.mozilla.javascript.Context;
-import org.mozilla.javascript.JavaScriptException;
-import org.mozilla.javascript.Scriptable;
-
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
-import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.util.Collection;
 import java.util.Collections;
 
 public class JCoffeeScriptCompiler {
 
-    private final Scriptable globalScope;
+    /**
+     * System property naming the {@link CoffeeScriptEngine} used by default.
+     */
+    public static final String ENGINE_PROPERTY = "org.jcoffeescript.engine";
+
+    private CoffeeScriptEngine engine;
     private final Options options;
+    private DiskCache diskCache;
+    private CompilerListener listener;
+    private CompileLimits limits = CompileLimits.NONE;
 
 	 public JCoffeeScriptCompiler() {
         this(Collections.<Option>emptyList());
     }
 
 	public JCoffeeScriptCompiler(Collection<Option> options) {
-        ClassLoader classLoader = getClass().getClassLoader();
-        InputStream inputStream = classLoader.getResourceAsStream("org/jcoffeescript/coffee-script.js");
-        try {
-            try {
-                Reader reader = new InputStreamReader(inputStream, "UTF-8");
-                try {
-                    Context context = Context.enter();
-                    context.setOptimizationLevel(-1); // Without this, Rhino hits a 64K bytecode limit and fails
-                    try {
-                        globalScope = context.initStandardObjects();
-                        context.evaluateReader(globalScope, reader, "coffee-script.js", 0, null);
-                    } finally {
-                        Context.exit();
-                    }
-                } finally {
-                    reader.close();
-                }
-            } catch (UnsupportedEncodingException e) {
-                throw new Error(e); // This should never happen
-            } finally {
-                inputStream.close();
-            }
-        } catch (IOException e) {
-            throw new Error(e); // This should never happen
-        }
+        this(options, null);
+    }
 
+    /**
+     * @param engine the engine to compile with, or null for the one named by
+     *               the {@value #ENGINE_PROPERTY} system property
+     */
+    public JCoffeeScriptCompiler(Collection<Option> options, CoffeeScriptEngine engine) {
+        this.engine = engine;
         this.options = new Options(options);
+        this.diskCache = DiskCache.fromSystemProperties();
+    }
+
+    /**
+     * Looks up and stores compiled JavaScript in the given cache, or in none
+     * when null. Defaults to the cache configured by the
+     * {@value DiskCache#DIRECTORY_PROPERTY} system property.
+     */
+    public void setDiskCache(DiskCache diskCache) {
+        this.diskCache = diskCache;
+    }
+
+    /**
+     * Tells the listener about every compilation, or none when null.
+     */
+    public void setListener(CompilerListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Refuses sources and results over the limits, and stops compilations
+     * over their budget, with a {@link JCoffeeScriptLimitExceededException}.
+     */
+    public void setLimits(CompileLimits limits) {
+        this.limits = limits;
     }
 
 	public String compile (String coffeeScriptSource) throws JCoffeeScriptCompileException {
-        Context context = Context.enter();
-        try {
-            Scriptable compileScope = context.newObject(globalScope);
-            compileScope.setParentScope(globalScope);
-            compileScope.put("coffeeScriptSource", compileScope, coffeeScriptSource);
-            try {
-                return (String)context.evaluateString(compileScope, String.format("CoffeeScript.compile(coffeeScriptSource, %s);", options.toJavaScript()),
-                        "JCoffeeScriptCompiler", 0, null);
-            } catch (JavaScriptException e) {
-                throw new JCoffeeScriptCompileException(e);
+        return compile(coffeeScriptSource, options);
+    }
+
+    /**
+     * Compiles with the given options instead of the ones of this compiler.
+     */
+    public String compile(String coffeeScriptSource, Options options) throws JCoffeeScriptCompileException {
+        limits.checkSource(coffeeScriptSource);
+        String javaScript = options.getPipeline().process(compileWithoutStages(coffeeScriptSource, options));
+        limits.checkJavaScript(javaScript);
+        return javaScript;
+    }
+
+    // the disk cache keeps the output of the engine, the stages are cheap enough to run again
+    private String compileWithoutStages(String coffeeScriptSource, Options options)
+            throws JCoffeeScriptCompileException {
+        if (diskCache != null) {
+            String cached = diskCache.get(coffeeScriptSource, options);
+            if (cached != null) {
+                return cached;
             }
-        } finally {
-            Context.exit();
         }
+
+        String javaScript = compileInEngine(coffeeScriptSource, options);
+        if (diskCache != null) {
+            diskCache.put(coffeeScriptSource, options, javaScript);
+        }
+        return javaScript;
+    }
+
+    /**
+     * Compiles the source read to the end of the reader, which is left open.
+     */
+    public String compile(Reader coffeeScriptSource) throws IOException, JCoffeeScriptCompileException {
+        return compile(Sources.read(coffeeScriptSource));
+    }
+
+    /**
+     * Compiles the source read to the end of the stream, which is left open.
+     */
+    public String compile(InputStream coffeeScriptSource, String charsetName)
+            throws IOException, JCoffeeScriptCompileException {
+        return compile(Sources.read(coffeeScriptSource, charsetName));
+    }
+
+    public String compile(File coffeeScriptFile, String charsetName) throws IOException, JCoffeeScriptCompileException {
+        return compile(Sources.read(coffeeScriptFile, charsetName));
+    }
+
+    /**
+     * Compiles the source read from the reader and writes the JavaScript to
+     * the writer, leaving both open.
+     */
+    public void compile(Reader coffeeScriptSource, Writer javaScript) throws IOException, JCoffeeScriptCompileException {
+        javaScript.write(compile(coffeeScriptSource));
+        javaScript.flush();
+    }
+
+    /**
+     * Compiles the source read from the input stream and writes the
+     * JavaScript to the output stream in the same charset, leaving both open.
+     */
+    public void compile(InputStream coffeeScriptSource, OutputStream javaScript, String charsetName)
+            throws IOException, JCoffeeScriptCompileException {
+        Writer writer = new OutputStreamWriter(javaScript, charsetName);
+        writer.write(compile(coffeeScriptSource, charsetName));
+        writer.flush();
+    }
+
+    private String compileInEngine(String coffeeScriptSource, Options options) throws JCoffeeScriptCompileException {
+        if (listener == null) {
+            return compileInEngineWithinBudget(coffeeScriptSource, options);
+        }
+        long start = System.nanoTime();
+        try {
+            String javaScript = compileInEngineWithinBudget(coffeeScriptSource, options);
+            listener.compiled(System.nanoTime() - start, coffeeScriptSource.length(), javaScript.length());
+            return javaScript;
+        } catch (JCoffeeScriptCompileException e) {
+            listener.failed(System.nanoTime() - start, coffeeScriptSource.length());
+            throw e;
+        }
+    }
+
+    private String compileInEngineWithinBudget(String coffeeScriptSource, Options options)
+            throws JCoffeeScriptCompileException {
+        CoffeeScriptEngine engine = engine();
+        if (limits.hasBudget() && engine instanceof RhinoCoffeeScriptEngine) {
+            return ((RhinoCoffeeScriptEngine) engine).compile(coffeeScriptSource, options, limits);
+        }
+        return engine.compile(coffeeScriptSource, options);
     }
 
+    // created on first use, so that disk cache hits never start an engine
+    private CoffeeScriptEngine engine() {
+        if (engine == null) {
+            engine = engineFromSystemProperty();
+        }
+        return engine;
+    }
+
+    private static CoffeeScriptEngine engineFromSystemProperty() {
+        String engineName = System.getProperty(ENGINE_PROPERTY, "rhino").trim();
+        if (engineName.equalsIgnoreCase("rhino")) {
+            return new RhinoCoffeeScriptEngine();
+        }
+        return new ScriptEngineCoffeeScriptEngine(engineName);
+    }
 
 }
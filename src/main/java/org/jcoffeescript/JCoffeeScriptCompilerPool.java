@@ -0,0 +1,309 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of {@link JCoffeeScriptCompiler}s, each one owning its own
+ * Rhino global scope, so that several threads can compile at the same time.
+ * Compilers are created lazily, up to the pool size.
+ */
+public class JCoffeeScriptCompilerPool {
+
+    /**
+     * Asynchronous compilations waiting for a thread in the default executor.
+     */
+    public static final int DEFAULT_QUEUE_LIMIT = 100;
+
+    private final Callable<JCoffeeScriptCompiler> factory;
+    private final int size;
+    private final long maxWaitMillis;
+    private final BlockingQueue<JCoffeeScriptCompiler> idle;
+
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger busy = new AtomicInteger();
+    private final AtomicLong saturations = new AtomicLong();
+
+    private ExecutorService asyncExecutor;
+    private volatile CompilerListener listener;
+
+    public JCoffeeScriptCompilerPool(int size, long maxWaitMillis) {
+        this(Collections.<Option>emptyList(), size, maxWaitMillis);
+    }
+
+    public JCoffeeScriptCompilerPool(final Collection<Option> options, int size, long maxWaitMillis) {
+        this(new Callable<JCoffeeScriptCompiler>() {
+            public JCoffeeScriptCompiler call() {
+                return new JCoffeeScriptCompiler(options);
+            }
+        }, size, maxWaitMillis);
+    }
+
+    public JCoffeeScriptCompilerPool(Callable<JCoffeeScriptCompiler> factory, int size, long maxWaitMillis) {
+        if (size < 1) {
+            throw new IllegalArgumentException("pool size must be at least 1: " + size);
+        }
+        this.factory = factory;
+        this.size = size;
+        this.maxWaitMillis = maxWaitMillis;
+        this.idle = new ArrayBlockingQueue<JCoffeeScriptCompiler>(size);
+    }
+
+    public String compile(String coffeeScriptSource) throws JCoffeeScriptCompileException {
+        JCoffeeScriptCompiler compiler = borrow();
+        try {
+            return compiler.compile(coffeeScriptSource);
+        } finally {
+            release(compiler);
+        }
+    }
+
+    /**
+     * Compiles with the given options instead of the ones of the compilers.
+     */
+    public String compile(String coffeeScriptSource, Options options) throws JCoffeeScriptCompileException {
+        JCoffeeScriptCompiler compiler = borrow();
+        try {
+            return compiler.compile(coffeeScriptSource, options);
+        } finally {
+            release(compiler);
+        }
+    }
+
+    /**
+     * Compiles on the asynchronous executor, by default one thread per
+     * compiler and at most {@value #DEFAULT_QUEUE_LIMIT} waiting compilations.
+     *
+     * The time a compilation spends queued is reported to the listener as a
+     * wait.
+     *
+     * @throws JCoffeeScriptPoolSaturatedException right away when the executor
+     *                                             rejects the compilation
+     */
+    public Future<String> compileAsync(final String coffeeScriptSource) throws JCoffeeScriptPoolSaturatedException {
+        final long submitted = System.nanoTime();
+        try {
+            return asyncExecutor().submit(new Callable<String>() {
+                public String call() throws JCoffeeScriptCompileException {
+                    CompilerListener listener = JCoffeeScriptCompilerPool.this.listener;
+                    if (listener != null) {
+                        listener.waited(System.nanoTime() - submitted);
+                    }
+                    return compile(coffeeScriptSource);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            saturations.incrementAndGet();
+            throw new JCoffeeScriptPoolSaturatedException("too many compilations waiting for " + size + " compilers");
+        }
+    }
+
+    /**
+     * Compiles on the asynchronous executor the source read to the end of the
+     * stream, which is left open.
+     *
+     * @see #compileAsync(String)
+     */
+    public Future<String> compileAsync(InputStream coffeeScriptSource, String charsetName)
+            throws IOException, JCoffeeScriptPoolSaturatedException {
+        return compileAsync(Sources.read(coffeeScriptSource, charsetName));
+    }
+
+    /**
+     * Waits for an asynchronous compilation, queued and running, at most the
+     * maximum wait time of the pool. A compilation that did not finish in
+     * time goes on, since engines do not stop when interrupted, and can be
+     * waited for again.
+     *
+     * @throws JCoffeeScriptPoolSaturatedException when the compilation did
+     *                                             not finish in time
+     */
+    public String await(Future<String> compilation) throws JCoffeeScriptCompileException, InterruptedException {
+        try {
+            return compilation.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            saturations.incrementAndGet();
+            throw new JCoffeeScriptPoolSaturatedException("compilation not done within " + maxWaitMillis + " ms");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof JCoffeeScriptCompileException) {
+                throw (JCoffeeScriptCompileException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Runs asynchronous compilations on the given executor, which should be
+     * bounded and reject what it cannot queue.
+     *
+     * @see #newBoundedExecutor
+     */
+    public synchronized void setAsyncExecutor(ExecutorService asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    /**
+     * Tells the listener how long callers and queued compilations wait for a
+     * compiler, and about the compilations of the compilers created from then
+     * on.
+     */
+    public void setListener(CompilerListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Stops the asynchronous executor.
+     */
+    public synchronized void shutdown() {
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * An executor of daemon threads that rejects tasks when all threads are
+     * busy and the queue holds queueLimit tasks. Idle threads time out.
+     */
+    public static ExecutorService newBoundedExecutor(int threads, int queueLimit) {
+        BlockingQueue<Runnable> queue = queueLimit > 0
+                ? new ArrayBlockingQueue<Runnable>(queueLimit) : new SynchronousQueue<Runnable>();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                queue, new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "jcoffeescript-compiler");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Checks out a compiler, creating one if the pool is not full yet, or
+     * waiting at most the configured time for another thread to release one.
+     * Every borrowed compiler must be given back with {@link #release}.
+     */
+    public JCoffeeScriptCompiler borrow() throws JCoffeeScriptPoolSaturatedException {
+        JCoffeeScriptCompiler compiler = idle.poll();
+        if (compiler == null) {
+            compiler = createIfBelowSize();
+        }
+        if (compiler == null) {
+            long start = System.nanoTime();
+            try {
+                compiler = idle.poll(maxWaitMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            CompilerListener listener = this.listener;
+            if (listener != null) {
+                listener.waited(System.nanoTime() - start);
+            }
+        }
+        if (compiler == null) {
+            saturations.incrementAndGet();
+            throw new JCoffeeScriptPoolSaturatedException(size, maxWaitMillis);
+        }
+        busy.incrementAndGet();
+        return compiler;
+    }
+
+    public void release(JCoffeeScriptCompiler compiler) {
+        busy.decrementAndGet();
+        idle.offer(compiler);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    public int getCreatedCount() {
+        return created.get();
+    }
+
+    public int getBusyCount() {
+        return busy.get();
+    }
+
+    /**
+     * Number of times a caller gave up waiting for a free compiler.
+     */
+    public long getSaturationCount() {
+        return saturations.get();
+    }
+
+    private synchronized ExecutorService asyncExecutor() {
+        if (asyncExecutor == null) {
+            asyncExecutor = newBoundedExecutor(size, DEFAULT_QUEUE_LIMIT);
+        }
+        return asyncExecutor;
+    }
+
+    private JCoffeeScriptCompiler createIfBelowSize() {
+        int current;
+        do {
+            current = created.get();
+            if (current >= size) {
+                return null;
+            }
+        } while (!created.compareAndSet(current, current + 1));
+
+        try {
+            JCoffeeScriptCompiler compiler = factory.call();
+            if (listener != null) {
+                compiler.setListener(listener);
+            }
+            return compiler;
+        } catch (RuntimeException e) {
+            created.decrementAndGet();
+            throw e;
+        } catch (Exception e) {
+            created.decrementAndGet();
+            throw new RuntimeException(e);
+        }
+    }
+}
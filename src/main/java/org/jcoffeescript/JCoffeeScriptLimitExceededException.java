@@ -0,0 +1,48 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jcoffeescript;
+
+/**
+ * Thrown when a compilation goes over one of its {@link CompileLimits}. It
+ * carries no stack trace, so refusing a source stays cheap.
+ */
+public class JCoffeeScriptLimitExceededException extends JCoffeeScriptCompileException {
+
+    public enum Limit {
+        SOURCE_LENGTH,
+        TIME,
+        INSTRUCTIONS,
+        JAVASCRIPT_LENGTH
+    }
+
+    private final Limit limit;
+
+    JCoffeeScriptLimitExceededException(Limit limit, String message) {
+        super(message);
+        this.limit = limit;
+    }
+
+    public Limit getLimit() {
+        return limit;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
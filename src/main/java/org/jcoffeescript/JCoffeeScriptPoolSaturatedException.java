@@ -0,0 +1,34 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+/**
+ * Thrown when no compiler became available in a {@link JCoffeeScriptCompilerPool}
+ * within its maximum wait time, or when its queue of asynchronous
+ * compilations is full.
+ */
+public class JCoffeeScriptPoolSaturatedException extends JCoffeeScriptCompileException {
+
+    JCoffeeScriptPoolSaturatedException(int size, long maxWaitMillis) {
+        super(String.format("all %d compilers busy for more than %d ms", size, maxWaitMillis));
+    }
+
+    JCoffeeScriptPoolSaturatedException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jcoffeescript;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Removes comments and the whitespace JavaScript does not need, the way JSMin
+ * does: a line break is only kept where it may end a statement, and comments
+ * starting with <code>/*!</code>, usually licenses, are kept.
+ */
+public class JavaScriptMinifier implements CompilerStage {
+
+    @Override
+    public Writer open(Writer output) {
+        return new MinifyingWriter(output);
+    }
+
+    // a slash after these starts a regular expression rather than a division
+    private static final Set<String> KEYWORDS_BEFORE_EXPRESSION = new HashSet<String>(Arrays.asList(
+            "return", "typeof", "instanceof", "in", "of", "new", "delete", "void", "throw", "case", "do", "else"));
+
+    private static final int CODE = 0;
+    private static final int STRING = 1;
+    private static final int STRING_ESCAPE = 2;
+    private static final int SLASH = 3;
+    private static final int REGEX = 4;
+    private static final int REGEX_ESCAPE = 5;
+    private static final int REGEX_CLASS = 6;
+    private static final int REGEX_CLASS_ESCAPE = 7;
+    private static final int COMMENT_START = 8;
+    private static final int COMMENT = 9;
+    private static final int COMMENT_STAR = 10;
+    private static final int LINE_COMMENT = 11;
+    private static final int KEPT_COMMENT = 12;
+    private static final int KEPT_COMMENT_STAR = 13;
+
+    private static class MinifyingWriter extends Writer {
+
+        private final Writer out;
+        private final char[] buffer = new char[8192];
+        private int buffered;
+
+        private int state = CODE;
+        private char quote;
+        // last character of the last token, 0 at the start
+        private char last;
+        // the identifier or keyword ending with last
+        private final StringBuilder word = new StringBuilder();
+        private boolean pendingSpace;
+        private boolean pendingNewline;
+        private boolean commentHasNewline;
+
+        MinifyingWriter(Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            process((char) c);
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                process(chars[i]);
+            }
+        }
+
+        @Override
+        public void write(String string, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                process(string.charAt(i));
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.write(buffer, 0, buffered);
+            buffered = 0;
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (state == SLASH) {
+                separate('/');
+                emit('/');
+            }
+            state = CODE;
+            flush();
+            out.close();
+        }
+
+        private void process(char c) throws IOException {
+            switch (state) {
+            case CODE:
+                if (isNewline(c)) {
+                    pendingNewline = true;
+                } else if (isWhitespace(c)) {
+                    pendingSpace = true;
+                } else if (c == '/') {
+                    state = SLASH;
+                } else {
+                    token(c);
+                    if (c == '"' || c == '\'') {
+                        quote = c;
+                        state = STRING;
+                    }
+                }
+                break;
+            case STRING:
+                emit(c);
+                if (c == '\\') {
+                    state = STRING_ESCAPE;
+                } else if (c == quote) {
+                    state = CODE;
+                }
+                break;
+            case STRING_ESCAPE:
+                emit(c);
+                state = STRING;
+                break;
+            case SLASH:
+                if (c == '*') {
+                    commentHasNewline = false;
+                    state = COMMENT_START;
+                } else if (c == '/') {
+                    state = LINE_COMMENT;
+                } else {
+                    boolean regex = isRegexAllowed();
+                    token('/');
+                    state = regex ? REGEX : CODE;
+                    process(c);
+                }
+                break;
+            case REGEX:
+                emit(c);
+                if (c == '\\') {
+                    state = REGEX_ESCAPE;
+                } else if (c == '[') {
+                    state = REGEX_CLASS;
+                } else if (c == '/') {
+                    state = CODE;
+                }
+                break;
+            case REGEX_ESCAPE:
+                emit(c);
+                state = REGEX;
+                break;
+            case REGEX_CLASS:
+                emit(c);
+                if (c == '\\') {
+                    state = REGEX_CLASS_ESCAPE;
+                } else if (c == ']') {
+                    state = REGEX;
+                }
+                break;
+            case REGEX_CLASS_ESCAPE:
+                emit(c);
+                state = REGEX_CLASS;
+                break;
+            case COMMENT_START:
+                if (c == '!') {
+                    emit('/');
+                    emit('*');
+                    emit('!');
+                    state = KEPT_COMMENT;
+                } else {
+                    state = COMMENT;
+                    process(c);
+                }
+                break;
+            case COMMENT:
+                if (c == '*') {
+                    state = COMMENT_STAR;
+                } else if (isNewline(c)) {
+                    commentHasNewline = true;
+                }
+                break;
+            case COMMENT_STAR:
+                if (c == '/') {
+                    // a comment still separates tokens, and ends a statement when it spans lines
+                    pendingNewline |= commentHasNewline;
+                    pendingSpace = true;
+                    state = CODE;
+                } else if (c != '*') {
+                    state = COMMENT;
+                    process(c);
+                }
+                break;
+            case LINE_COMMENT:
+                if (isNewline(c)) {
+                    pendingNewline = true;
+                    state = CODE;
+                }
+                break;
+            case KEPT_COMMENT:
+                emit(c);
+                if (c == '*') {
+                    state = KEPT_COMMENT_STAR;
+                }
+                break;
+            case KEPT_COMMENT_STAR:
+                emit(c);
+                if (c == '/') {
+                    state = CODE;
+                } else if (c != '*') {
+                    state = KEPT_COMMENT;
+                }
+                break;
+            default:
+                throw new IllegalStateException("state " + state);
+            }
+        }
+
+        /**
+         * Writes the first character of a token, after the whitespace
+         * separating it from the previous one if needed.
+         */
+        private void token(char c) throws IOException {
+            if (isIdentifierPart(c)) {
+                if (!isIdentifierPart(last) || pendingSpace || pendingNewline) {
+                    word.setLength(0);
+                }
+                word.append(c);
+            }
+            separate(c);
+            emit(c);
+            last = c;
+        }
+
+        private void separate(char next) throws IOException {
+            if (pendingNewline && endsStatement(last) && beginsStatement(next)) {
+                emit('\n');
+            } else if ((pendingSpace || pendingNewline) && needsSpace(last, next)) {
+                emit(' ');
+            }
+            pendingSpace = false;
+            pendingNewline = false;
+        }
+
+        private boolean isRegexAllowed() {
+            if (last == 0 || "(,=:[!&|?{};}~+-*%<>^".indexOf(last) >= 0) {
+                return true;
+            }
+            return isIdentifierPart(last) && KEYWORDS_BEFORE_EXPRESSION.contains(word.toString());
+        }
+
+        private void emit(char c) throws IOException {
+            if (buffered == buffer.length) {
+                out.write(buffer, 0, buffered);
+                buffered = 0;
+            }
+            buffer[buffered++] = c;
+        }
+    }
+
+    private static boolean needsSpace(char previous, char next) {
+        return (isIdentifierPart(previous) && isIdentifierPart(next))
+                // a + +b, a - -b, a / /b/
+                || (next == previous && (next == '+' || next == '-' || next == '/'))
+                // 1 .toString()
+                || (previous >= '0' && previous <= '9' && next == '.');
+    }
+
+    private static boolean endsStatement(char c) {
+        return isIdentifierPart(c) || "}])+-\"'/".indexOf(c) >= 0;
+    }
+
+    private static boolean beginsStatement(char c) {
+        return isIdentifierPart(c) || "{[(+-!~\"'".indexOf(c) >= 0;
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '_' || c == '$' || c == '\\' || c > 126;
+    }
+
+    private static boolean isNewline(char c) {
+        return c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c <= ' ' || c == '\u00a0' || c == '\ufeff';
+    }
+}
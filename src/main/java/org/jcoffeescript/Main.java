@@ -18,54 +18,115 @@ package org.jcoffeescript;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.util.Collection;
-import java.util.LinkedList;
 
 public class Main {
-    private static final int BUFFER_SIZE = 262144;
-    private static final int BUFFER_OFFSET = 0;
+    // of the standard input, like the files of batch mode and the compile server
+    private static final String CHARSET = "UTF-8";
 
     public static void main(String[] args) {
-        new Main().execute(args, System.out, System.in);
+        int status = new Main().execute(args, System.out, System.in);
+        if (status != 0) {
+            System.exit(status);
+        }
     }
 
-    public void execute(String[] args, PrintStream out, InputStream in) {
-        final Collection<Option> options = readOptionsFrom(args);
+    /**
+     * Compiles the standard input to the output, or, when files or folders
+     * are given, every CoffeeScript file in them to JavaScript files.
+     *
+     * @return the exit status, 0 when everything compiled
+     */
+    public int execute(String[] args, PrintStream out, InputStream in) {
+        final Arguments arguments;
         try {
-            out.print(new JCoffeeScriptCompiler(options).compile(readSourceFrom(in)));
-        } catch (JCoffeeScriptCompileException e) {
+            arguments = new Arguments(args);
+        } catch (IllegalArgumentException e) {
             System.err.println(e.getMessage());
+            System.err.println(Arguments.USAGE);
+            return 2;
         }
-    }
 
-    private String readSourceFrom(InputStream inputStream) {
-        final InputStreamReader streamReader = new InputStreamReader(inputStream);
-        try {
-            try {
-                StringBuilder builder = new StringBuilder(BUFFER_SIZE);
-                char[] buffer = new char[BUFFER_SIZE];
-                int numCharsRead = streamReader.read(buffer, BUFFER_OFFSET, BUFFER_SIZE);
-                while (numCharsRead >= 0) {
-                    builder.append(buffer, BUFFER_OFFSET, numCharsRead);
-                    numCharsRead = streamReader.read(buffer, BUFFER_OFFSET, BUFFER_SIZE);
+        if (arguments.server) {
+            return serve(arguments, out);
+        }
+
+        if (arguments.client) {
+            return compileOnServer(arguments, out, in);
+        }
+
+        if (arguments.isBatch()) {
+            BatchCompiler batch = new BatchCompiler(arguments.options, arguments.outputDirectory,
+                    arguments.threads, System.err);
+            if (arguments.watch) {
+                try {
+                    new Watcher(batch, arguments.inputs, Watcher.DEFAULT_INTERVAL, Watcher.DEFAULT_DEBOUNCE, out).watch();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
-                return builder.toString();
-            } finally {
-                streamReader.close();
+                return 0;
             }
+            AssetManifest manifest = null;
+            if (arguments.manifest != null) {
+                manifest = new AssetManifest();
+                batch.setManifest(manifest);
+            }
+            boolean succeeded = batch.compile(arguments.inputs);
+            out.println(String.format("compiled %d, skipped %d, failed %d",
+                    batch.getCompiledCount(), batch.getSkippedCount(), batch.getFailedCount()));
+            if (manifest != null) {
+                try {
+                    manifest.write(arguments.manifest);
+                } catch (IOException e) {
+                    System.err.println(arguments.manifest + ": " + e);
+                    return 1;
+                }
+            }
+            return succeeded ? 0 : 1;
+        }
+
+        try {
+            out.print(new JCoffeeScriptCompiler(arguments.options).compile(in, CHARSET));
+            return 0;
+        } catch (JCoffeeScriptCompileException e) {
+            System.err.println(e.getMessage());
+            return 1;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private Collection<Option> readOptionsFrom(String[] args) {
-        final Collection<Option> options = new LinkedList<Option>();
+    private int serve(Arguments arguments, PrintStream out) {
+        JCoffeeScriptCompilerPool compilerPool = new JCoffeeScriptCompilerPool(arguments.options, arguments.threads,
+                Long.MAX_VALUE);
+        CompileServer server;
+        try {
+            server = new CompileServer(arguments.port, compilerPool);
+        } catch (IOException e) {
+            System.err.println("cannot listen on port " + arguments.port + ": " + e.getMessage());
+            return 1;
+        }
+        out.println("compiling on port " + server.getPort());
+        out.flush();
+        server.run();
+        return 0;
+    }
 
-        if (args.length == 1 && args[0].equals("--bare")) {
-            options.add(Option.BARE);
+    private int compileOnServer(Arguments arguments, PrintStream out, InputStream in) {
+        try {
+            CompileClient client = new CompileClient(arguments.port);
+            try {
+                out.print(client.compile(Sources.read(in, CHARSET), arguments.options));
+                return 0;
+            } finally {
+                client.close();
+            }
+        } catch (JCoffeeScriptCompileException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        } catch (IOException e) {
+            System.err.println("cannot compile on port " + arguments.port + ": " + e.getMessage());
+            return 1;
         }
-        return options;
     }
 }
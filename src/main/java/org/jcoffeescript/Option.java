@@ -17,5 +17,9 @@
 package org.jcoffeescript;
 
 public enum Option {
-	BARE
+	BARE,
+	/**
+	 * Minifies the compiled JavaScript with {@link JavaScriptMinifier}.
+	 */
+	MINIFY
 }
@@ -16,16 +16,41 @@
 
 package org.jcoffeescript;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 public class Options {
     private final String javaScriptOptions;
+    private final Pipeline pipeline;
 
     public Options(Collection<Option> options) {
+        this(options, Collections.<CompilerStage>emptyList());
+    }
+
+    /**
+     * @param stages run on the compiled JavaScript, before the stages of the
+     *               options like {@link Option#MINIFY}
+     */
+    public Options(Collection<Option> options, List<CompilerStage> stages) {
         javaScriptOptions = String.format("{bare: %b}", options.contains(Option.BARE));
+        List<CompilerStage> allStages = new ArrayList<CompilerStage>(stages);
+        if (options.contains(Option.MINIFY)) {
+            allStages.add(new JavaScriptMinifier());
+        }
+        pipeline = new Pipeline(allStages);
     }
 
+    /**
+     * The options of the CoffeeScript compiler, which are all the compiled
+     * JavaScript depends on before the stages.
+     */
     public String toJavaScript() {
         return javaScriptOptions;
     }
+
+    public Pipeline getPipeline() {
+        return pipeline;
+    }
 }
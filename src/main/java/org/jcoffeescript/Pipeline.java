@@ -0,0 +1,75 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jcoffeescript;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compiler stages run one after the other on the compiled JavaScript.
+ */
+public class Pipeline {
+
+    private final List<CompilerStage> stages;
+
+    public Pipeline(List<CompilerStage> stages) {
+        this.stages = Collections.unmodifiableList(new ArrayList<CompilerStage>(stages));
+    }
+
+    public List<CompilerStage> getStages() {
+        return stages;
+    }
+
+    public boolean isEmpty() {
+        return stages.isEmpty();
+    }
+
+    /**
+     * A writer passing what is written through every stage to the output.
+     * Closing it finishes the stages and closes the output.
+     */
+    public Writer open(Writer output) throws IOException {
+        Writer writer = output;
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            writer = stages.get(i).open(writer);
+        }
+        return writer;
+    }
+
+    /**
+     * @throws JCoffeeScriptCompileException when a stage rejects the JavaScript
+     */
+    public String process(String javaScript) throws JCoffeeScriptCompileException {
+        if (stages.isEmpty()) {
+            return javaScript;
+        }
+        StringWriter output = new StringWriter(javaScript.length());
+        try {
+            Writer writer = open(output);
+            writer.write(javaScript);
+            writer.close();
+        } catch (IOException e) {
+            throw new JCoffeeScriptCompileException(e.getMessage(), e);
+        }
+        return output.toString();
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.JavaScriptException;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Runs the CoffeeScript compiler in the bundled Mozilla Rhino, calling the
+ * CoffeeScript.compile function directly rather than evaluating a script.
+ */
+public class RhinoCoffeeScriptEngine implements CoffeeScriptEngine {
+
+    // instructions run between two checks of the budget
+    private static final int OBSERVER_THRESHOLD = 10000;
+
+    private static final ContextFactory BUDGET_CONTEXT_FACTORY = new BudgetContextFactory();
+
+    private final Scriptable globalScope;
+    private final Scriptable coffeeScript;
+    private final Function compileFunction;
+    private final ConcurrentMap<String, Scriptable> optionObjects = new ConcurrentHashMap<String, Scriptable>();
+
+    public RhinoCoffeeScriptEngine() {
+        this(CoffeeScriptRuntime.getShared());
+    }
+
+    RhinoCoffeeScriptEngine(CoffeeScriptRuntime runtime) {
+        globalScope = runtime.newGlobalScope();
+        coffeeScript = (Scriptable) ScriptableObject.getProperty(globalScope, "CoffeeScript");
+        compileFunction = (Function) ScriptableObject.getProperty(coffeeScript, "compile");
+    }
+
+    public String compile(String coffeeScriptSource, Options options) throws JCoffeeScriptCompileException {
+        return compile(coffeeScriptSource, options, CompileLimits.NONE);
+    }
+
+    /**
+     * Compiles within the time and instruction budget of the limits.
+     *
+     * @throws IllegalStateException when the thread already is in a context of
+     *                               another factory, which cannot check the
+     *                               budget
+     */
+    String compile(String coffeeScriptSource, Options options, CompileLimits limits)
+            throws JCoffeeScriptCompileException {
+        if (!limits.hasBudget()) {
+            Context context = Context.enter();
+            try {
+                return compile(context, coffeeScriptSource, options);
+            } finally {
+                Context.exit();
+            }
+        }
+        Context current = Context.getCurrentContext();
+        if (current != null && current.getFactory() != BUDGET_CONTEXT_FACTORY) {
+            // entering would reuse that context, whose factory never observes the instructions
+            throw new IllegalStateException("cannot enforce the compile budget inside a Rhino context of another factory");
+        }
+        Context context = BUDGET_CONTEXT_FACTORY.enterContext();
+        int threshold = context.getInstructionObserverThreshold();
+        context.setInstructionObserverThreshold(OBSERVER_THRESHOLD);
+        context.putThreadLocal(Budget.class, new Budget(limits));
+        try {
+            return compile(context, coffeeScriptSource, options);
+        } catch (BudgetExceeded e) {
+            throw e.exception;
+        } finally {
+            // the context is the caller's when nested in another one
+            context.removeThreadLocal(Budget.class);
+            context.setInstructionObserverThreshold(threshold);
+            Context.exit();
+        }
+    }
+
+    private String compile(Context context, String coffeeScriptSource, Options options)
+            throws JCoffeeScriptCompileException {
+        // CoffeeScript.compile writes its state into the options, so each
+        // call gets an empty object inheriting from the prebuilt ones
+        Scriptable callOptions = context.newObject(globalScope);
+        callOptions.setPrototype(optionsObject(context, options));
+        try {
+            return (String) compileFunction.call(context, globalScope, coffeeScript,
+                    new Object[] {coffeeScriptSource, callOptions});
+        } catch (JavaScriptException e) {
+            throw new JCoffeeScriptCompileException(e.getValue().toString(), e);
+        }
+    }
+
+    private static class Budget {
+        final long deadline;
+        final long maxInstructions;
+        final long maxMillis;
+        long instructions;
+
+        Budget(CompileLimits limits) {
+            this.maxMillis = limits.getMaxMillis();
+            this.deadline = System.nanoTime() + maxMillis * 1000000;
+            this.maxInstructions = limits.getMaxInstructions();
+        }
+
+        void spend(int instructionCount) {
+            instructions += instructionCount;
+            if (maxInstructions > 0 && instructions > maxInstructions) {
+                throw new BudgetExceeded(new JCoffeeScriptLimitExceededException(
+                        JCoffeeScriptLimitExceededException.Limit.INSTRUCTIONS,
+                        "compilation ran more than " + maxInstructions + " instructions"));
+            }
+            if (maxMillis > 0 && System.nanoTime() - deadline > 0) {
+                throw new BudgetExceeded(new JCoffeeScriptLimitExceededException(
+                        JCoffeeScriptLimitExceededException.Limit.TIME,
+                        "compilation took more than " + maxMillis + " ms"));
+            }
+        }
+    }
+
+    /**
+     * Aborts a script: an Error, unlike exceptions, cannot be caught by the
+     * script itself.
+     */
+    private static class BudgetExceeded extends Error {
+        final JCoffeeScriptLimitExceededException exception;
+
+        BudgetExceeded(JCoffeeScriptLimitExceededException exception) {
+            super(exception.getMessage(), null);
+            this.exception = exception;
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private static class BudgetContextFactory extends ContextFactory {
+
+        @Override
+        protected void observeInstructionCount(Context context, int instructionCount) {
+            Budget budget = (Budget) context.getThreadLocal(Budget.class);
+            if (budget != null) {
+                budget.spend(instructionCount);
+            }
+        }
+    }
+
+    private Scriptable optionsObject(Context context, Options options) {
+        String javaScriptOptions = options.toJavaScript();
+        Scriptable optionsObject = optionObjects.get(javaScriptOptions);
+        if (optionsObject == null) {
+            optionsObject = (Scriptable) context.evaluateString(globalScope, "(" + javaScriptOptions + ")",
+                    "JCoffeeScriptCompiler", 0, null);
+            optionObjects.put(javaScriptOptions, optionsObject);
+        }
+        return optionsObject;
+    }
+}
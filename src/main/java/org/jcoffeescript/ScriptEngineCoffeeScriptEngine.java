@@ -0,0 +1,66 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+/**
+ * Runs the CoffeeScript compiler in a javax.script (JSR-223) engine found on
+ * the classpath, such as GraalJS or Nashorn.
+ */
+public class ScriptEngineCoffeeScriptEngine implements CoffeeScriptEngine {
+
+    // remembers the JavaScript error, as engines word ScriptException messages differently
+    private static final String COMPILE_FUNCTION =
+            "function __jcoffeescriptCompile(source, options) {\n" +
+            "  __jcoffeescriptError = null;\n" +
+            "  try {\n" +
+            "    return CoffeeScript.compile(String(source), options);\n" +
+            "  } catch (e) {\n" +
+            "    __jcoffeescriptError = String(e);\n" +
+            "    throw e;\n" +
+            "  }\n" +
+            "}";
+
+    private final ScriptEngine scriptEngine;
+
+    public ScriptEngineCoffeeScriptEngine(String engineName) {
+        scriptEngine = new ScriptEngineManager(getClass().getClassLoader()).getEngineByName(engineName);
+        if (scriptEngine == null) {
+            throw new IllegalArgumentException("No javax.script engine named " + engineName + " on the classpath");
+        }
+        try {
+            scriptEngine.eval(CoffeeScriptRuntime.readCompilerSource());
+            scriptEngine.eval(COMPILE_FUNCTION);
+        } catch (ScriptException e) {
+            throw new IllegalStateException("coffee-script.js failed to load in " + engineName, e);
+        }
+    }
+
+    public String compile(String coffeeScriptSource, Options options) throws JCoffeeScriptCompileException {
+        scriptEngine.put("coffeeScriptSource", coffeeScriptSource);
+        try {
+            return String.valueOf(scriptEngine.eval(
+                    String.format("__jcoffeescriptCompile(coffeeScriptSource, %s);", options.toJavaScript())));
+        } catch (ScriptException e) {
+            Object error = scriptEngine.get("__jcoffeescriptError");
+            throw new JCoffeeScriptCompileException(error != null ? error.toString() : e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jcoffeescript;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Persistent record of the hash each compiled file was compiled from, made
+ * of the compiler version, the options and the source. Unlike modification
+ * times, it survives checkouts and copies of the compiled files.
+ * <p>
+ * The file has a line per compiled file, like <code>sha1sum</code>: the
+ * hash, a space and the path of the compiled file, relative to the folder
+ * of the hash file when inside it.
+ */
+/*default*/ class SourceHashes {
+
+    private final File file;
+    private final String prefix;
+    private final ConcurrentMap<String, String> hashes = new ConcurrentHashMap<String, String>();
+
+    private SourceHashes(File file, Collection<Option> options) {
+        this.file = file;
+        this.prefix = DiskCache.compilerVersion() + '\0' + CompileServer.formatOptions(new TreeSet<Option>(options)) + '\0';
+    }
+
+    /**
+     * Reads the hash file, if any.
+     */
+    static SourceHashes load(File file, Collection<Option> options) throws IOException {
+        SourceHashes sourceHashes = new SourceHashes(file, options);
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        } catch (FileNotFoundException e) {
+            return sourceHashes;
+        }
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space > 0) {
+                    sourceHashes.hashes.put(line.substring(space + 1), line.substring(0, space));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return sourceHashes;
+    }
+
+    String hash(String coffeeScriptSource) {
+        return DiskCache.sha1(prefix + coffeeScriptSource);
+    }
+
+    /**
+     * Whether the target exists and was compiled from a source with the
+     * given hash.
+     */
+    boolean isUpToDate(File target, String hash) {
+        return hash.equals(hashes.get(pathOf(target))) && target.isFile();
+    }
+
+    void put(File target, String hash) {
+        hashes.put(pathOf(target), hash);
+    }
+
+    void remove(File target) {
+        hashes.remove(pathOf(target));
+    }
+
+    /**
+     * Writes the hash file, sorted by path so that it diffs well.
+     */
+    void save() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(hashes).entrySet()) {
+            content.append(entry.getValue()).append(' ').append(entry.getKey()).append('\n');
+        }
+        BatchCompiler.write(file, content.toString());
+    }
+
+    private String pathOf(File target) {
+        String folder = file.getAbsoluteFile().getParent() + File.separator;
+        String path = target.getAbsolutePath();
+        if (path.startsWith(folder)) {
+            path = path.substring(folder.length());
+        }
+        return path.replace(File.separatorChar, '/');
+    }
+}
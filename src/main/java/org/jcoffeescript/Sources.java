@@ -0,0 +1,70 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Reads CoffeeScript sources into the single String handed to the engine,
+ * decoding bytes once instead of copying them through readers and builders.
+ */
+/*default*/ class Sources {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    static String read(Reader reader) throws IOException {
+        StringBuilder source = new StringBuilder(BUFFER_SIZE);
+        char[] buffer = new char[BUFFER_SIZE];
+        int n;
+        while ((n = reader.read(buffer)) != -1) {
+            source.append(buffer, 0, n);
+        }
+        return source.toString();
+    }
+
+    static String read(InputStream inputStream, String charsetName) throws IOException {
+        return read(inputStream, charsetName, BUFFER_SIZE);
+    }
+
+    static String read(File file, String charsetName) throws IOException {
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            // sized for the whole file, so it is usually read in a single pass
+            return read(inputStream, charsetName, (int) Math.min(file.length() + 1, Integer.MAX_VALUE - 8));
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static String read(InputStream inputStream, String charsetName, int expectedLength) throws IOException {
+        byte[] bytes = new byte[Math.max(expectedLength, 16)];
+        int length = 0;
+        int n;
+        while ((n = inputStream.read(bytes, length, bytes.length - length)) != -1) {
+            length += n;
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+        }
+        return new String(bytes, 0, length, charsetName);
+    }
+}
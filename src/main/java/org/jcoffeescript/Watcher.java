@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles files and folders again whenever their CoffeeScript files change.
+ * The trees are polled for modification times; after a change the watcher
+ * waits until a poll finds nothing new, so that a burst of saves is compiled
+ * once, and only the outdated files are compiled, with warm compilers.
+ */
+/*default*/ class Watcher {
+
+    static final long DEFAULT_INTERVAL = 500;
+    static final long DEFAULT_DEBOUNCE = 100;
+
+    private final BatchCompiler batch;
+    private final List<File> inputs;
+    private final long intervalMillis;
+    private final long debounceMillis;
+    private final PrintStream out;
+
+    Watcher(BatchCompiler batch, List<File> inputs, long intervalMillis, long debounceMillis, PrintStream out) {
+        this.batch = batch;
+        this.inputs = inputs;
+        this.intervalMillis = intervalMillis;
+        this.debounceMillis = debounceMillis;
+        this.out = out;
+    }
+
+    /**
+     * Compiles, then watches until interrupted.
+     */
+    void watch() throws InterruptedException {
+        Map<File, Long> snapshot = snapshot();
+        compile();
+        while (true) {
+            Thread.sleep(intervalMillis);
+            Map<File, Long> current = snapshot();
+            if (current.equals(snapshot)) {
+                continue;
+            }
+            do {
+                snapshot = current;
+                Thread.sleep(debounceMillis);
+                current = snapshot();
+            } while (!current.equals(snapshot));
+            compile();
+        }
+    }
+
+    private void compile() {
+        int compiled = batch.getCompiledCount();
+        int failed = batch.getFailedCount();
+        batch.compile(inputs);
+        out.println(String.format("%tT compiled %d, failed %d", new Date(),
+                batch.getCompiledCount() - compiled, batch.getFailedCount() - failed));
+        out.flush();
+    }
+
+    private Map<File, Long> snapshot() {
+        Map<File, Long> snapshot = new HashMap<File, Long>();
+        for (File input : inputs) {
+            snapshot(input, snapshot);
+        }
+        return snapshot;
+    }
+
+    private void snapshot(File file, Map<File, Long> snapshot) {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File child : files) {
+                    snapshot(child, snapshot);
+                }
+            }
+        } else if (file.getName().endsWith(".coffee")) {
+            snapshot.put(file, file.lastModified());
+        }
+    }
+}
@@ -16,35 +16,225 @@
 
 package org.jcoffeescript.web;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.JarURLConnection;
 import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.GZIPOutputStream;
+
+import org.jcoffeescript.JCoffeeScriptCompileException;
 
 /*default*/ class Binary {
 	
-	private String content;
+	// below this size gzip headers eat most of the savings
+	private static final int MIN_GZIP_LENGTH = 256;
+	
+	private URL source;
+	private byte[] content;
+	private byte[] gzippedContent;
+	private String etag;
 	private long lastModified;
+	private String error;
+	// the same javascript minified, when the filter serves it too
+	private Binary minified;
+	
+	/**
+	 * A compilation failure, cached like a success until the coffee file
+	 * changes. Its content is javascript throwing the error.
+	 */
+	public static Binary failed(URL coffeeURL, String coffeeFilename, JCoffeeScriptCompileException e) {
+		Binary binary = new Binary(coffeeURL, "throw new Error(" + javaScriptString(e.getMessage(coffeeFilename)) + ");\n");
+		binary.error = e.getMessage(coffeeFilename);
+		return binary;
+	}
 	
 	public Binary(URL coffeeURL, String content) {
-		this.lastModified = lastModified(coffeeURL);
+		this(coffeeURL, content, null);
+	}
+	
+	/**
+	 * @param minifiedContent the content minified, or null when not served
+	 */
+	public Binary(URL coffeeURL, String content, String minifiedContent) {
+		this(lastModified(coffeeURL), utf8(content),
+				minifiedContent == null ? null : new Binary(lastModified(coffeeURL), utf8(minifiedContent), null));
+		this.source = coffeeURL;
+	}
+	
+	/**
+	 * Javascript not compiled from a single coffee file, like a bundle.
+	 */
+	public Binary(long lastModified, byte[] content, Binary minified) {
+		this.lastModified = lastModified;
 		this.content = content;
+		this.gzippedContent = gzip(this.content);
+		this.etag = etag(this.content);
+		this.minified = minified;
 	}
 
 	public boolean isOlderThan(URL coffeeURL) {
 		return this.lastModified < lastModified(coffeeURL);
 	}
 	
-	public String getContent() {
+	/**
+	 * Whether the coffee file this was compiled from changed or was deleted.
+	 */
+	public boolean isStale() {
+		return source != null && this.lastModified != lastModified(source);
+	}
+	
+	/**
+	 * The compiled javascript encoded in UTF-8.
+	 */
+	public byte[] getContent() {
 		return content;
 	}
 	
+	/**
+	 * The content compressed with gzip, or null when compressing does not
+	 * pay off.
+	 */
+	public byte[] getGzippedContent() {
+		return gzippedContent;
+	}
+	
+	/**
+	 * Strong entity tag of the content; the gzipped variant gets its own.
+	 */
+	public String getETag(boolean gzipped) {
+		return gzipped ? "\"" + etag + "-gzip\"" : "\"" + etag + "\"";
+	}
+	
+	/**
+	 * Hex encoded SHA-1 of the content.
+	 */
+	public String getHash() {
+		return etag;
+	}
+	
+	public boolean matches(String entityTag) {
+		String opaqueTag = entityTag.startsWith("W/") ? entityTag.substring(2) : entityTag;
+		return opaqueTag.equals(getETag(false)) || opaqueTag.equals(getETag(true));
+	}
+	
+	/**
+	 * This javascript minified, or null when the minified variant is not
+	 * served.
+	 */
+	public Binary getMinified() {
+		return minified;
+	}
+	
+	public long getWeight() {
+		return content.length + (gzippedContent == null ? 0 : gzippedContent.length)
+				+ (minified == null ? 0 : minified.getWeight());
+	}
+	
 	public long getLastModified() {
 		return lastModified;
 	}
+	
+	/**
+	 * The compilation error with its location, or null when compiled.
+	 */
+	public String getError() {
+		return error;
+	}
 
-	private long lastModified(URL coffeeURL) {
-		File file = new File(coffeeURL.getFile());
-		// when resource is inside WAR, file doesn't exist and
-		// lastModified equals zero
-		return file.lastModified();
+	static long lastModified(URL coffeeURL) {
+		if (coffeeURL == null) {
+			return 0;
+		}
+		if (coffeeURL.getProtocol().equals("file")) {
+			return new File(coffeeURL.getFile()).lastModified();
+		}
+		// inside a WAR or jar: the time of the entry, 0 when it is gone
+		try {
+			URLConnection connection = open(coffeeURL);
+			if (connection instanceof JarURLConnection) {
+				// the connection itself tells the time of the whole archive
+				JarFile archive = ((JarURLConnection) connection).getJarFile();
+				try {
+					JarEntry entry = archive.getJarEntry(((JarURLConnection) connection).getEntryName());
+					return entry == null ? 0 : entry.getTime();
+				} finally {
+					archive.close();
+				}
+			}
+			long lastModified = connection.getLastModified();
+			connection.getInputStream().close();
+			return lastModified;
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+	
+	/**
+	 * A connection to the coffee file that does not share a cached archive,
+	 * so a replaced WAR or jar is read again.
+	 */
+	static URLConnection open(URL coffeeURL) throws IOException {
+		URLConnection connection = coffeeURL.openConnection();
+		connection.setUseCaches(false);
+		return connection;
+	}
+	
+	private static String javaScriptString(String text) {
+		StringBuilder literal = new StringBuilder(text.length() + 2).append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\') {
+				literal.append('\\').append(c);
+			} else if (c < ' ' || c == '\u2028' || c == '\u2029' || c == '<') {
+				// also keeps "</script>" out when inlined in a page
+				literal.append(String.format("\\u%04x", (int) c));
+			} else {
+				literal.append(c);
+			}
+		}
+		return literal.append('"').toString();
+	}
+	
+	private static byte[] utf8(String content) {
+		try {
+			return content.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new Error(e); // This should never happen
+		}
+	}
+	
+	private static byte[] gzip(byte[] content) {
+		if (content.length < MIN_GZIP_LENGTH) {
+			return null;
+		}
+		try {
+			ByteArrayOutputStream gzipped = new ByteArrayOutputStream(content.length / 3);
+			GZIPOutputStream out = new GZIPOutputStream(gzipped);
+			out.write(content);
+			out.close();
+			return gzipped.size() < content.length ? gzipped.toByteArray() : null;
+		} catch (IOException e) {
+			throw new Error(e); // This should never happen
+		}
+	}
+	
+	private static String etag(byte[] content) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error(e); // This should never happen
+		}
 	}
 }
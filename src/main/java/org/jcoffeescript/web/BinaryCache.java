@@ -0,0 +1,205 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript.web;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Compiled binaries by coffee filename, bounded by number of entries and by
+ * total content length. Eviction follows the CLOCK algorithm: a hit only sets
+ * a flag on its entry, and the evicting thread gives flagged entries a second
+ * chance, approximating LRU without reordering anything on reads. Replaced
+ * and removed entries are swept from the clock once they outnumber the live
+ * ones.
+ */
+/*default*/ class BinaryCache {
+
+	private static class Node {
+		final String key;
+		final Binary binary;
+		volatile boolean referenced;
+		
+		Node(String key, Binary binary) {
+			this.key = key;
+			this.binary = binary;
+		}
+	}
+	
+	// dead nodes tolerated in the clock beyond the live ones
+	private static final int MIN_DEAD_NODES = 16;
+	
+	private final int maxEntries;
+	private final long maxWeight;
+	
+	private final ConcurrentMap<String, Node> nodes = new ConcurrentHashMap<String, Node>();
+	private final ConcurrentLinkedQueue<Node> clock = new ConcurrentLinkedQueue<Node>();
+	private final AtomicInteger clockSize = new AtomicInteger();
+	private final AtomicLong weight = new AtomicLong();
+	private final Lock evictionLock = new ReentrantLock();
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxWeight maximum total content length, or zero for no limit
+	 */
+	public BinaryCache(int maxEntries, long maxWeight) {
+		this.maxEntries = maxEntries;
+		this.maxWeight = maxWeight;
+	}
+	
+	public Binary get(String key) {
+		Node node = nodes.get(key);
+		if (node == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		if (!node.referenced) {
+			node.referenced = true;
+		}
+		return node.binary;
+	}
+	
+	public void put(String key, Binary binary) {
+		Node node = new Node(key, binary);
+		Node previous = nodes.put(key, node);
+		weight.addAndGet(binary.getWeight());
+		if (previous != null) {
+			// the replaced node stays in the clock until the hand skips it
+			weight.addAndGet(-previous.binary.getWeight());
+		}
+		clock.offer(node);
+		clockSize.incrementAndGet();
+		if (isOverCapacity()) {
+			evict();
+		} else if (previous != null) {
+			sweepIfMostlyDead();
+		}
+	}
+	
+	public void remove(String key) {
+		Node node = nodes.remove(key);
+		if (node != null) {
+			weight.addAndGet(-node.binary.getWeight());
+			sweepIfMostlyDead();
+		}
+	}
+	
+	/**
+	 * Removes the binaries whose coffee file changed since they were compiled.
+	 * 
+	 * @return the number of binaries removed
+	 */
+	public int removeStale() {
+		int removed = 0;
+		for (Node node : nodes.values()) {
+			if (node.binary.isStale() && nodes.remove(node.key, node)) {
+				weight.addAndGet(-node.binary.getWeight());
+				removed++;
+			}
+		}
+		if (removed > 0) {
+			sweepIfMostlyDead();
+		}
+		return removed;
+	}
+	
+	public int size() {
+		return nodes.size();
+	}
+	
+	public long getWeight() {
+		return weight.get();
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	public long getEvictions() {
+		return evictions.get();
+	}
+	
+	/**
+	 * Nodes in the clock, live or waiting to be swept.
+	 */
+	int getClockSize() {
+		return clockSize.get();
+	}
+	
+	private boolean isOverCapacity() {
+		return nodes.size() > maxEntries || (maxWeight > 0 && weight.get() > maxWeight);
+	}
+	
+	private void evict() {
+		if (!evictionLock.tryLock()) {
+			// another thread is already evicting
+			return;
+		}
+		try {
+			Node node;
+			while (isOverCapacity() && (node = clock.poll()) != null) {
+				clockSize.decrementAndGet();
+				if (nodes.get(node.key) != node) {
+					// replaced or removed
+					continue;
+				}
+				if (node.referenced) {
+					node.referenced = false;
+					clock.offer(node);
+					clockSize.incrementAndGet();
+				} else if (nodes.remove(node.key, node)) {
+					weight.addAndGet(-node.binary.getWeight());
+					evictions.incrementAndGet();
+				}
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+	
+	private void sweepIfMostlyDead() {
+		if (clockSize.get() <= 2 * nodes.size() + MIN_DEAD_NODES || !evictionLock.tryLock()) {
+			return;
+		}
+		try {
+			// only the holder of the lock takes nodes out of the clock
+			for (Iterator<Node> iterator = clock.iterator(); iterator.hasNext();) {
+				Node node = iterator.next();
+				if (nodes.get(node.key) != node) {
+					iterator.remove();
+					clockSize.decrementAndGet();
+				}
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript.web;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coffee files served concatenated as a single javascript file. The
+ * concatenation is kept until one of its members is compiled again.
+ */
+/*default*/ class Bundle {
+	
+	private static class Concatenation {
+		final Binary[] members;
+		final Binary binary;
+		
+		Concatenation(Binary[] members, Binary binary) {
+			this.members = members;
+			this.binary = binary;
+		}
+	}
+	
+	private final String javascriptName;
+	private final List<String> coffeeFilenames;
+	private volatile Concatenation concatenation;
+	
+	public Bundle(String javascriptName, List<String> coffeeFilenames) {
+		this.javascriptName = javascriptName;
+		this.coffeeFilenames = Collections.unmodifiableList(new ArrayList<String>(coffeeFilenames));
+	}
+	
+	/**
+	 * Parses bundle definitions like
+	 * <code>app=models/user,views/main; admin=admin/main</code>, each member
+	 * being the name of a coffee file without extension.
+	 * 
+	 * @return the bundles by javascript name, e.g. app.js
+	 */
+	public static Map<String, Bundle> parse(String definitions, String coffeescriptFilenamePrefix) {
+		Map<String, Bundle> bundles = new LinkedHashMap<String, Bundle>();
+		for (String definition : definitions.split(";")) {
+			if (definition.trim().equals("")) {
+				continue;
+			}
+			String[] nameAndMembers = definition.split("=");
+			if (nameAndMembers.length != 2 || nameAndMembers[0].trim().equals("")) {
+				throw new IllegalArgumentException("invalid bundle definition: " + definition);
+			}
+			List<String> coffeeFilenames = new ArrayList<String>();
+			for (String member : nameAndMembers[1].split(",")) {
+				if (!member.trim().equals("")) {
+					coffeeFilenames.add(coffeescriptFilenamePrefix + "/" + member.trim() + ".coffee");
+				}
+			}
+			String javascriptName = nameAndMembers[0].trim() + ".js";
+			bundles.put(javascriptName, new Bundle(javascriptName, coffeeFilenames));
+		}
+		return bundles;
+	}
+	
+	public String getJavascriptName() {
+		return javascriptName;
+	}
+	
+	public List<String> getCoffeeFilenames() {
+		return coffeeFilenames;
+	}
+	
+	/**
+	 * The last concatenation, or null before the first one.
+	 */
+	public Binary getBinary() {
+		Concatenation concatenation = this.concatenation;
+		return concatenation == null ? null : concatenation.binary;
+	}
+	
+	/**
+	 * The concatenation of the given compiled members, built again only when
+	 * one of them is not the one concatenated last time.
+	 */
+	public Binary concatenate(Binary[] members) {
+		Concatenation concatenation = this.concatenation;
+		if (concatenation != null && Arrays.equals(concatenation.members, members)) {
+			return concatenation.binary;
+		}
+		
+		// the time of the rebuild, since a member replaced by an older file must not look unmodified,
+		// and at least a second later than the previous one as HTTP dates have no milliseconds
+		long lastModified = System.currentTimeMillis();
+		if (concatenation != null) {
+			lastModified = Math.max(lastModified, concatenation.binary.getLastModified() / 1000 * 1000 + 1000);
+		}
+		Binary binary = concatenation(members, lastModified);
+		this.concatenation = new Concatenation(members.clone(), binary);
+		return binary;
+	}
+	
+	private static Binary concatenation(Binary[] members, long lastModified) {
+		int length = 0;
+		Binary[] minifiedMembers = new Binary[members.length];
+		boolean minified = true;
+		for (int i = 0; i < members.length; i++) {
+			length += members[i].getContent().length + 1;
+			minifiedMembers[i] = members[i].getMinified();
+			minified &= minifiedMembers[i] != null;
+		}
+		byte[] content = new byte[length];
+		int offset = 0;
+		for (Binary member : members) {
+			byte[] memberContent = member.getContent();
+			System.arraycopy(memberContent, 0, content, offset, memberContent.length);
+			offset += memberContent.length;
+			content[offset++] = '\n';
+		}
+		return new Binary(lastModified, content, minified ? concatenation(minifiedMembers, lastModified) : null);
+	}
+}
@@ -1,18 +1,30 @@
 package org.jcoffeescript.web;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -23,24 +35,65 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.jcoffeescript.AssetManifest;
+import org.jcoffeescript.CompileLimits;
+import org.jcoffeescript.CompilerStage;
+import org.jcoffeescript.DiskCache;
 import org.jcoffeescript.JCoffeeScriptCompileException;
 import org.jcoffeescript.JCoffeeScriptCompiler;
+import org.jcoffeescript.JCoffeeScriptCompilerPool;
+import org.jcoffeescript.JCoffeeScriptLimitExceededException;
+import org.jcoffeescript.JCoffeeScriptLimitExceededException.Limit;
+import org.jcoffeescript.JCoffeeScriptPoolSaturatedException;
+import org.jcoffeescript.JavaScriptMinifier;
+import org.jcoffeescript.Option;
+import org.jcoffeescript.Pipeline;
 
 public class CoffeeScriptFilter implements Filter {
 
 	private static final String DEFAULT_JS_PREFIX = "/js";
 	private static final String DEFAULT_COFFEE_PREFIX = "/WEB-INF/coffee";
-	private static final int BUFFER_SIZE = 4096;
 	private static final int MAX_COMPILED_JS = 100;
+	private static final long MAX_COMPILED_JS_BYTES = 32L * 1024 * 1024;
+	private static final long DEFAULT_POOL_MAX_WAIT = 30000;
+	private static final int DEFAULT_COMPILE_QUEUE_LIMIT = 100;
+	private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+	private static final long DEFAULT_CHECK_INTERVAL = 2000;
+	private static final String MINIFIED_EXTENSION = ".min.js";
 	
 	private String javascriptResourcePrefix;
 	private String coffeescriptFilenamePrefix;
+	private String encoding;
 	
 	private long startupTime = new java.util.Date().getTime() / 1000 * 1000;
+	
+	private final SingleFlight<Binary> compilations = new SingleFlight<Binary>();
+	// asynchronous compilations that outlived the requests waiting for them, by coffee filename
+	private final ConcurrentMap<String, PendingCompilation> pendingCompilations =
+			new ConcurrentHashMap<String, PendingCompilation>();
+	
+	private ServletContext servletContext;
+	private JCoffeeScriptCompilerPool compilerPool;
+	private BinaryCache previousBinaries;
+	private FilterStatistics statistics;
+	// only when serving fingerprinted URLs
+	private AssetManifest manifest;
+	private Map<String, Bundle> bundles = Collections.emptyMap();
+	// only when serving <name>.min.js next to <name>.js
+	private Pipeline minifier;
+	private ObjectName objectName;
+	
+	// existing coffee filenames, or null to look each one up on every request
+	private volatile Set<String> coffeeIndex;
+	
+	// checks the coffee file on every hit, only without a change watcher
+	private boolean checkOnHit;
+	private ScheduledExecutorService changeWatcher;
 
-	@SuppressWarnings("serial")
 	@Override
 	public void init(FilterConfig config) throws ServletException {
+		this.servletContext = config.getServletContext();
+		
 		// prefixes
 		String jsPrefix = config.getInitParameter("javascriptResourcePrefix");
 		if (jsPrefix == null || jsPrefix.equals("")) {
@@ -53,93 +106,469 @@ public class CoffeeScriptFilter implements Filter {
 			csPrefix = DEFAULT_COFFEE_PREFIX;
 		}
 		this.coffeescriptFilenamePrefix = csPrefix;
+		
+		String encoding = config.getInitParameter("encoding");
+		this.encoding = encoding == null || encoding.trim().equals("") ? "UTF-8" : encoding.trim();
+		if (!Charset.isSupported(this.encoding)) {
+			throw new ServletException("Unsupported encoding: " + encoding);
+		}
 				
-		// coffeescript compiler
-		JCoffeeScriptCompiler compiler = new JCoffeeScriptCompiler();
-		config.getServletContext().setAttribute("compiler", compiler);
+		// minification
+		String minify = config.getInitParameter("minify");
+		minify = minify == null || minify.trim().equals("") ? "none" : minify.trim();
+		if (!minify.equals("none") && !minify.equals("min") && !minify.equals("all")) {
+			throw new ServletException("Invalid value for init-param minify: " + minify);
+		}
+		if (minify.equals("min")) {
+			this.minifier = new Pipeline(Collections.<CompilerStage>singletonList(new JavaScriptMinifier()));
+		}
+		final List<Option> options = minify.equals("all")
+				? Collections.singletonList(Option.MINIFY) : Collections.<Option>emptyList();
 		
-		// hashmap
-		LinkedHashMap<String, Binary> previousBinaries = new LinkedHashMap<String, Binary>() {
-
+		// coffeescript compilers
+		int poolSize = intParameter(config, "compilerPoolSize", Runtime.getRuntime().availableProcessors());
+		long poolMaxWait = longParameter(config, "compilerPoolMaxWait", DEFAULT_POOL_MAX_WAIT);
+		final DiskCache diskCache = diskCache(config);
+		final CompileLimits limits = new CompileLimits(intParameter(config, "maxSourceLength", 0),
+				longParameter(config, "maxCompileMillis", 0), longParameter(config, "maxCompileInstructions", 0),
+				intParameter(config, "maxJavascriptLength", 0));
+		if (!limits.isEnforced()) {
+			servletContext.log("maxCompileMillis and maxCompileInstructions are ignored: "
+					+ "only the rhino engine in interpreted mode enforces them");
+		}
+		this.compilerPool = new JCoffeeScriptCompilerPool(new Callable<JCoffeeScriptCompiler>() {
+			
 			@Override
-			protected boolean removeEldestEntry(Entry<String, Binary> eldest) {
-				return size() > MAX_COMPILED_JS;
+			public JCoffeeScriptCompiler call() {
+				JCoffeeScriptCompiler compiler = new JCoffeeScriptCompiler(options);
+				if (diskCache != null) {
+					compiler.setDiskCache(diskCache);
+				}
+				// a file over the limits fails like a syntax error, and its failure is cached the same way
+				compiler.setLimits(limits);
+				return compiler;
+			}
+		}, poolSize, poolMaxWait);
+		int compileQueueLimit = intParameter(config, "compileQueueLimit", DEFAULT_COMPILE_QUEUE_LIMIT);
+		compilerPool.setAsyncExecutor(JCoffeeScriptCompilerPool.newBoundedExecutor(poolSize, compileQueueLimit));
+		servletContext.setAttribute("compilerPool", compilerPool);
+		
+		// cache
+		int maxEntries = intParameter(config, "cacheMaxEntries", MAX_COMPILED_JS);
+		long maxBytes = longParameter(config, "cacheMaxBytes", MAX_COMPILED_JS_BYTES);
+		this.previousBinaries = new BinaryCache(maxEntries, maxBytes);
+		servletContext.setAttribute("previousBinaries", previousBinaries);
+		
+		// statistics
+		this.statistics = new FilterStatistics(previousBinaries, compilerPool, listener(config));
+		compilerPool.setListener(statistics);
+		servletContext.setAttribute("statistics", statistics);
+		if (!"false".equals(config.getInitParameter("jmx"))) {
+			registerMBean(config);
+		}
+		
+		// bundles
+		String bundleDefinitions = config.getInitParameter("bundles");
+		if (bundleDefinitions != null) {
+			try {
+				this.bundles = Bundle.parse(bundleDefinitions, coffeescriptFilenamePrefix);
+			} catch (IllegalArgumentException e) {
+				throw new ServletException("Invalid value for init-param bundles: " + e.getMessage(), e);
+			}
+		}
+		
+		// fingerprinted URLs
+		if (Boolean.parseBoolean(config.getInitParameter("fingerprint"))) {
+			this.manifest = new AssetManifest();
+			servletContext.setAttribute("assetManifest", manifest);
+		}
+		
+		// invalidation
+		boolean production = Boolean.parseBoolean(config.getInitParameter("production"));
+		long checkInterval = longParameter(config, "checkInterval", DEFAULT_CHECK_INTERVAL);
+		this.checkOnHit = !production && checkInterval <= 0;
+		if (!checkOnHit) {
+			// requests for javascript that isn't coffee pass straight through
+			coffeeIndex = indexCoffeeFilenames();
+		}
+		if (!production && checkInterval > 0) {
+			// hits don't touch the file system, a background thread drops changed files instead
+			changeWatcher = Executors.newSingleThreadScheduledExecutor(daemonThreads("jcoffeescript-change-watcher"));
+			changeWatcher.scheduleWithFixedDelay(new Runnable() {
+				
+				@Override
+				public void run() {
+					previousBinaries.removeStale();
+					coffeeIndex = indexCoffeeFilenames();
+				}
+			}, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+		}
+		
+		// warm-up
+		String warmUp = config.getInitParameter("warmUp");
+		if (warmUp != null && !warmUp.trim().equals("") && !warmUp.trim().equals("none")) {
+			if (!warmUp.trim().equals("blocking") && !warmUp.trim().equals("background")) {
+				throw new ServletException("Invalid value for init-param warmUp: " + warmUp);
+			}
+			warmUp(poolSize, warmUp.trim().equals("blocking"));
+		}
+	}
+	
+	/**
+	 * Compiles every coffee file on as many threads as there are compilers,
+	 * waiting for them to finish when blocking.
+	 */
+	private void warmUp(int threads, boolean blocking) throws ServletException {
+		List<String> coffeeFilenames = new ArrayList<String>();
+		findCoffeeFilenames(coffeescriptFilenamePrefix + "/", coffeeFilenames);
+		
+		final WarmUp progress = new WarmUp(servletContext, coffeeFilenames.size());
+		servletContext.setAttribute("warmUp", progress);
+		ExecutorService executor = Executors.newFixedThreadPool(threads, daemonThreads("jcoffeescript-warm-up"));
+		for (final String coffeeFilename : coffeeFilenames) {
+			executor.execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						URL coffeeURL = servletContext.getResource(coffeeFilename);
+						Binary binary = compilations.execute(coffeeFilename,
+								new Compilation(coffeeFilename, coffeeURL, compilerPool, previousBinaries));
+						if (binary.getError() == null) {
+							progress.compiled(coffeeFilename);
+						} else {
+							progress.failed(coffeeFilename, binary.getError());
+						}
+					} catch (JCoffeeScriptCompileException e) {
+						progress.failed(coffeeFilename, e.getMessage());
+					} catch (IOException e) {
+						progress.failed(coffeeFilename, e.toString());
+					} catch (RuntimeException e) {
+						progress.failed(coffeeFilename, e.toString());
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		
+		if (blocking) {
+			try {
+				progress.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ServletException("Interrupted while compiling the CoffeeScript files", e);
+			}
+		}
+	}
+	
+	private Set<String> indexCoffeeFilenames() {
+		List<String> coffeeFilenames = new ArrayList<String>();
+		findCoffeeFilenames(coffeescriptFilenamePrefix + "/", coffeeFilenames);
+		return new HashSet<String>(coffeeFilenames);
+	}
+	
+	private void findCoffeeFilenames(String folder, List<String> coffeeFilenames) {
+		Set<?> paths = servletContext.getResourcePaths(folder);
+		if (paths == null) {
+			return;
+		}
+		for (Object path : paths) {
+			String resourcePath = (String) path;
+			if (resourcePath.endsWith("/")) {
+				findCoffeeFilenames(resourcePath, coffeeFilenames);
+			} else if (resourcePath.endsWith(".coffee")) {
+				coffeeFilenames.add(resourcePath);
+			}
+		}
+	}
+	
+	private static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
 			}
 		};
-		config.getServletContext().setAttribute("previousBinaries", Collections.synchronizedMap(previousBinaries));
 	}
 	
 	
 	@Override
 	public void destroy() {
+		if (changeWatcher != null) {
+			changeWatcher.shutdownNow();
+		}
+		compilerPool.shutdown();
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException e) {
+				servletContext.log("Could not unregister " + objectName, e);
+			}
+		}
+	}
+	
+	private Object listener(FilterConfig config) throws ServletException {
+		String className = config.getInitParameter("listener");
+		if (className == null || className.trim().equals("")) {
+			return null;
+		}
+		try {
+			ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+			if (classLoader == null) {
+				classLoader = getClass().getClassLoader();
+			}
+			return Class.forName(className.trim(), true, classLoader).newInstance();
+		} catch (ClassNotFoundException e) {
+			throw new ServletException("Invalid value for init-param listener: " + className, e);
+		} catch (InstantiationException e) {
+			throw new ServletException("Invalid value for init-param listener: " + className, e);
+		} catch (IllegalAccessException e) {
+			throw new ServletException("Invalid value for init-param listener: " + className, e);
+		}
+	}
+	
+	private void registerMBean(FilterConfig config) {
+		try {
+			ObjectName name = new ObjectName("org.jcoffeescript:type=CoffeeScriptFilter,context="
+					+ ObjectName.quote(servletContext.getContextPath()) + ",name=" + ObjectName.quote(config.getFilterName()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, name);
+			this.objectName = name;
+		} catch (JMException e) {
+			// e.g. the same filter twice in one JVM, statistics stay available as a context attribute
+			servletContext.log("Could not register the CoffeeScript filter MBean", e);
+		}
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain)
 			throws IOException, ServletException {
 		
 		HttpServletRequest request = (HttpServletRequest) req;
 		HttpServletResponse response = (HttpServletResponse) resp;
-		ServletContext servletContext = request.getSession().getServletContext();
-		
-		JCoffeeScriptCompiler compiler = (JCoffeeScriptCompiler) servletContext.getAttribute("compiler");
-		Map<String, Binary> previousBinaries = (Map<String, Binary>) servletContext.getAttribute("previousBinaries");
 		
-		
-		String javascriptURI = getJavascriptURI(request);
-		String coffeeFilename = discoverCoffeeFilename(javascriptURI);
-		if (coffeeFilename == null) {
-			// it's not javascript
+		String javascriptName = discoverJavascriptName(getJavascriptURI(request));
+		String coffeeFilename = javascriptName == null ? null : coffeeFilename(javascriptName);
+		Set<String> coffeeIndex = this.coffeeIndex;
+		String fingerprint = null;
+		if (manifest != null && javascriptName != null && !bundles.containsKey(javascriptName)
+				&& (coffeeIndex == null || !coffeeIndex.contains(coffeeFilename))) {
+			String[] fingerprinted = AssetManifest.parseFingerprintedName(javascriptName);
+			if (fingerprinted != null) {
+				javascriptName = fingerprinted[0];
+				coffeeFilename = coffeeFilename(javascriptName);
+				fingerprint = fingerprinted[1];
+			}
+		}
+		boolean minified = false;
+		if (minifier != null && javascriptName != null && javascriptName.endsWith(MINIFIED_EXTENSION)
+				&& !bundles.containsKey(javascriptName) && (coffeeIndex == null || !coffeeIndex.contains(coffeeFilename))) {
+			javascriptName = javascriptName.substring(0, javascriptName.length() - MINIFIED_EXTENSION.length()) + ".js";
+			coffeeFilename = coffeeFilename(javascriptName);
+			minified = true;
+		}
+		Bundle bundle = javascriptName == null ? null : bundles.get(javascriptName);
+		if (bundle == null
+				&& (coffeeFilename == null || (coffeeIndex != null && !coffeeIndex.contains(coffeeFilename)))) {
+			// it's not coffee
 			chain.doFilter(req, resp);
 			return;
 		}
 		
-		URL coffeeURL = servletContext.getResource(coffeeFilename);
-		
-		if (coffeeURL == null) {
+		long start = System.nanoTime();
+		Binary binary;
+		boolean cached;
+		try {
+			if (bundle != null) {
+				coffeeFilename = bundle.getJavascriptName();
+				Binary previous = bundle.getBinary();
+				binary = bundled(bundle);
+				cached = binary == previous;
+			} else {
+				Binary previous = previousBinaries.get(coffeeFilename);
+				binary = compiled(coffeeFilename, previous);
+				cached = binary == previous;
+			}
+		} catch (JCoffeeScriptPoolSaturatedException e) {
+			// every compiler is busy, ask the client to come back later
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+			statistics.served(coffeeFilename, HttpServletResponse.SC_SERVICE_UNAVAILABLE, false, System.nanoTime() - start);
+			return;
+		} catch (JCoffeeScriptLimitExceededException e) {
+			// only the time limit gets here, it depends on the load so the client may come back later
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+					"Compilation of " + coffeeFilename + " stopped at the " + e.getLimit() + " limit: " + e.getMessage());
+			statistics.served(coffeeFilename, HttpServletResponse.SC_SERVICE_UNAVAILABLE, false, System.nanoTime() - start);
+			return;
+		} catch (JCoffeeScriptCompileException e) {
+			throw new ServletException("Compilation error on file: " + coffeeFilename + " " + e.getMessage(), e);
+		}
+		if (binary == null) {
 			// static javascript or coffe filename was deleted
-			previousBinaries.remove(coffeeFilename);
 			chain.doFilter(req, resp);
 			return;
 		}
 		
-		Binary binary;
-		if ((binary = previousBinaries.get(coffeeFilename)) == null
-				|| binary.isOlderThan(coffeeURL)) {
-			
-			InputStream coffeeStream = coffeeURL.openStream();
-			String source = getContent(coffeeStream);
-
-			try {
-				synchronized (compiler) {
-					binary = new Binary(coffeeURL, compiler.compile(source));
-				}
-			} catch (JCoffeeScriptCompileException e) {
-				throw new ServletException("Compilation error on file: " + coffeeFilename + " " + e.getMessage(), e);
-			}
+		if (binary.getError() != null) {
+			response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			response.setHeader("Cache-Control", "no-cache");
+			response.setContentType("text/javascript; charset=UTF-8");
+			response.setContentLength(binary.getContent().length);
+			response.getOutputStream().write(binary.getContent());
+			statistics.served(coffeeFilename, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, cached, System.nanoTime() - start);
+			return;
+		}
+		if (minified) {
+			binary = binary.getMinified();
 		}
-		
-		// write in all cases to put value at the end of the linked list
-		previousBinaries.put(coffeeFilename, binary);
 		
 		// optimizing response
 		long lastModified = binary.getLastModified() == 0 ? this.startupTime : (binary.getLastModified() / 1000 * 1000);
-		long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+		boolean gzipped = binary.getGzippedContent() != null && acceptsGzip(request);
+		if (fingerprint != null) {
+			// an outdated fingerprint still gets the current content, but not for keeps
+			response.setHeader("Cache-Control", binary.getHash().startsWith(fingerprint) ? IMMUTABLE : "no-cache");
+		}
+		// a 304 varies like the 200 it confirms
+		response.setHeader("Vary", "Accept-Encoding");
 		
-		if (lastModified > ifModifiedSince) {
+		if (isModified(request, binary, lastModified)) {
 			
 			// write last modified info
 			response.setDateHeader("Last-Modified", lastModified);
-			response.setContentType("text/javascript");
-			PrintWriter writer = resp.getWriter();
-			writer.write(binary.getContent());
+			response.setHeader("ETag", binary.getETag(gzipped));
+			response.setContentType("text/javascript; charset=UTF-8");
+			
+			byte[] content = binary.getContent();
+			if (gzipped) {
+				response.setHeader("Content-Encoding", "gzip");
+				content = binary.getGzippedContent();
+			}
+			response.setContentLength(content.length);
+			response.getOutputStream().write(content);
+			statistics.served(coffeeFilename, HttpServletResponse.SC_OK, cached, System.nanoTime() - start);
 		} else {
+			response.setHeader("ETag", binary.getETag(gzipped));
 			response.setContentLength(0);
 			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			statistics.served(coffeeFilename, HttpServletResponse.SC_NOT_MODIFIED, cached, System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * The binary of a coffee file, compiled unless the cached one is still
+	 * valid, or null when the file does not exist.
+	 */
+	private Binary compiled(String coffeeFilename, Binary binary) throws IOException, JCoffeeScriptCompileException {
+		URL coffeeURL = null;
+		if (binary == null || checkOnHit) {
+			coffeeURL = servletContext.getResource(coffeeFilename);
+			if (coffeeURL == null) {
+				previousBinaries.remove(coffeeFilename);
+				return null;
+			}
+		}
+		
+		if (binary == null || (checkOnHit && binary.isOlderThan(coffeeURL))) {
+			// concurrent requests for the same file share a single compilation
+			binary = compilations.execute(coffeeFilename,
+					new Compilation(coffeeFilename, coffeeURL, compilerPool, previousBinaries));
+		}
+		return binary;
+	}
+	
+	/**
+	 * The concatenation of the members of a bundle, each one compiled only
+	 * when it changed, or the failure of the first member that does not
+	 * compile.
+	 */
+	private Binary bundled(Bundle bundle) throws IOException, JCoffeeScriptCompileException {
+		List<String> coffeeFilenames = bundle.getCoffeeFilenames();
+		Binary[] members = new Binary[coffeeFilenames.size()];
+		for (int i = 0; i < members.length; i++) {
+			String coffeeFilename = coffeeFilenames.get(i);
+			members[i] = compiled(coffeeFilename, previousBinaries.get(coffeeFilename));
+			if (members[i] == null) {
+				return Binary.failed(null, coffeeFilename,
+						new JCoffeeScriptCompileException("no such file in bundle " + bundle.getJavascriptName(), null));
+			}
+			if (members[i].getError() != null) {
+				return members[i];
+			}
+		}
+		Binary previous = bundle.getBinary();
+		Binary binary = bundle.concatenate(members);
+		if (manifest != null && binary != previous) {
+			putInManifest(bundle.getJavascriptName(), binary);
+		}
+		return binary;
+	}
+	
+	private boolean isModified(HttpServletRequest request, Binary binary, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			// entity tags take precedence over dates
+			for (String entityTag : ifNoneMatch.split(",")) {
+				entityTag = entityTag.trim();
+				if (entityTag.equals("*") || binary.matches(entityTag)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return lastModified > request.getDateHeader("If-Modified-Since");
+	}
+	
+	private boolean acceptsGzip(HttpServletRequest request) {
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if (acceptEncoding == null) {
+			return false;
 		}
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parameters = coding.split(";");
+			if (parameters[0].trim().equalsIgnoreCase("gzip")) {
+				return parameters.length < 2 || !parameters[1].trim().matches("q=0(\\.0*)?");
+			}
+		}
+		return false;
 	}
 	
+	private DiskCache diskCache(FilterConfig config) throws ServletException {
+		String directory = config.getInitParameter("diskCacheDirectory");
+		if (directory == null || directory.trim().equals("")) {
+			return null;
+		}
+		long maxBytes = longParameter(config, "diskCacheMaxBytes", DiskCache.DEFAULT_MAX_BYTES);
+		return new DiskCache(new File(directory.trim()), maxBytes);
+	}
+
+	private int intParameter(FilterConfig config, String name, int defaultValue) throws ServletException {
+		String value = config.getInitParameter(name);
+		if (value == null || value.trim().equals("")) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			// also out of the int range
+			throw new ServletException("Invalid value for init-param " + name + ": " + value, e);
+		}
+	}
+
+	private long longParameter(FilterConfig config, String name, long defaultValue) throws ServletException {
+		String value = config.getInitParameter(name);
+		if (value == null || value.trim().equals("")) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ServletException("Invalid value for init-param " + name + ": " + value, e);
+		}
+	}
+
 	private String getJavascriptURI(HttpServletRequest request) {
 		String javascriptURI = request.getServletPath();
 		if (request.getPathInfo() != null) {
@@ -148,30 +577,135 @@ public class CoffeeScriptFilter implements Filter {
 		return javascriptURI;
 	}
 
-	private String discoverCoffeeFilename(String javascriptResource) {
-
-		Pattern pattern = Pattern.compile(javascriptResourcePrefix + "/(.*).js");
-		Matcher matcher = pattern.matcher(javascriptResource);
-		if (!matcher.matches()) {
+	/**
+	 * The path of the javascript under the javascript prefix, or null when
+	 * out of it.
+	 */
+	private String discoverJavascriptName(String javascriptResource) {
+		int prefixLength = javascriptResourcePrefix.length() + 1;
+		if (javascriptResource.length() <= prefixLength + ".js".length()
+				|| !javascriptResource.startsWith(javascriptResourcePrefix)
+				|| javascriptResource.charAt(prefixLength - 1) != '/'
+				|| !javascriptResource.endsWith(".js")) {
 			return null;
 		}
-		return coffeescriptFilenamePrefix + "/" + matcher.group(1) + ".coffee";
+		return javascriptResource.substring(prefixLength);
+	}
+	
+	private String coffeeFilename(String javascriptName) {
+		return coffeescriptFilenamePrefix + "/" + javascriptName.substring(0, javascriptName.length() - ".js".length())
+				+ ".coffee";
+	}
+	
+	private static String minifiedName(String javascriptName) {
+		return javascriptName.substring(0, javascriptName.length() - ".js".length()) + MINIFIED_EXTENSION;
+	}
+	
+	private void putInManifest(String javascriptName, Binary binary) {
+		manifest.put(javascriptName, AssetManifest.fingerprintedNameForHash(javascriptName, binary.getHash()));
+		if (binary.getMinified() != null) {
+			String minifiedName = minifiedName(javascriptName);
+			manifest.put(minifiedName, AssetManifest.fingerprintedNameForHash(minifiedName, binary.getMinified().getHash()));
+		}
+	}
+	
+	private String javascriptName(String coffeeFilename) {
+		return coffeeFilename.substring(coffeescriptFilenamePrefix.length() + 1,
+				coffeeFilename.length() - ".coffee".length()) + ".js";
 	}
 
-	private String getContent(InputStream coffeeStream) throws IOException {
-		InputStreamReader reader = new InputStreamReader(coffeeStream);
-		try {
-			StringWriter writer = new StringWriter();
+	private class Compilation implements Callable<Binary> {
+		
+		private final String coffeeFilename;
+		private final URL coffeeURL;
+		private final JCoffeeScriptCompilerPool compilerPool;
+		private final BinaryCache previousBinaries;
+		
+		public Compilation(String coffeeFilename, URL coffeeURL, JCoffeeScriptCompilerPool compilerPool,
+				BinaryCache previousBinaries) {
+			this.coffeeFilename = coffeeFilename;
+			this.coffeeURL = coffeeURL;
+			this.compilerPool = compilerPool;
+			this.previousBinaries = previousBinaries;
+		}
+		
+		@Override
+		public Binary call() throws IOException, JCoffeeScriptCompileException {
+			// a compilation a previous request gave up on may still be running, wait for it instead
+			long lastModified = Binary.lastModified(coffeeURL);
+			PendingCompilation pending = pendingCompilations.get(coffeeFilename);
+			if (pending == null || pending.lastModified != lastModified) {
+				InputStream coffeeStream = Binary.open(coffeeURL).getInputStream();
+				try {
+					pending = new PendingCompilation(compilerPool.compileAsync(coffeeStream, encoding), lastModified);
+				} finally {
+					coffeeStream.close();
+				}
+				pendingCompilations.put(coffeeFilename, pending);
+			}
+			Binary binary;
+			boolean stillRunning = false;
+			try {
+				String javascript = compiled(pending.compilation);
+				binary = new Binary(coffeeURL, javascript, minifier == null ? null : minifier.process(javascript));
+			} catch (JCoffeeScriptPoolSaturatedException e) {
+				// not done in time, left for the next request rather than compiled twice
+				stillRunning = !pending.compilation.isDone();
+				throw e;
+			} catch (JCoffeeScriptCompileException e) {
+				if (e instanceof JCoffeeScriptLimitExceededException
+						&& ((JCoffeeScriptLimitExceededException) e).getLimit() == Limit.TIME) {
+					// depends on the load of the server, answered with 503 so the client tries again
+					throw e;
+				}
+				// other failures are cached too, so a broken file is compiled once per change
+				binary = Binary.failed(coffeeURL, coffeeFilename, e);
+				servletContext.log("Compilation error on file: " + binary.getError());
+			} finally {
+				if (!stillRunning) {
+					pendingCompilations.remove(coffeeFilename, pending);
+				}
+			}
+			if (manifest != null) {
+				String javascriptName = javascriptName(coffeeFilename);
+				if (binary.getError() == null) {
+					putInManifest(javascriptName, binary);
+				} else {
+					manifest.remove(javascriptName);
+					manifest.remove(minifiedName(javascriptName));
+				}
+			}
+			// cache before the waiting requests are released
+			previousBinaries.put(coffeeFilename, binary);
+			return binary;
+		}
+	}
+
+	private static class PendingCompilation {
+		
+		final Future<String> compilation;
+		// of the coffee file it compiles
+		final long lastModified;
+		
+		PendingCompilation(Future<String> compilation, long lastModified) {
+			this.compilation = compilation;
+			this.lastModified = lastModified;
+		}
+	}
 
-			char[] buffer = new char[BUFFER_SIZE];
-			int n = 0;
-			while (-1 != (n = reader.read(buffer))) {
-				writer.write(buffer, 0, n);
-			}
-			String source = writer.toString();
-			return source;
-		} finally {
-			reader.close();
+	/**
+	 * Waits for an asynchronous compilation. Servlet 2.5 has no asynchronous
+	 * requests, so the request thread still waits, but at most the pool's
+	 * maximum wait, and compilations beyond the queue limit are refused at
+	 * once instead of piling up.
+	 */
+	private String compiled(Future<String> compilation) throws IOException, JCoffeeScriptCompileException {
+		try {
+			return compilerPool.await(compilation);
+		} catch (InterruptedException e) {
+			compilation.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while compiling");
 		}
 	}
 
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript.web;
+
+/**
+ * Receives every response of the {@link CoffeeScriptFilter} for a coffee
+ * file. Name an implementation with the "listener" init-param to bridge the
+ * filter to a metrics system; if it also implements
+ * {@link org.jcoffeescript.CompilerListener} it gets the compilations too.
+ */
+public interface FilterListener {
+
+	/**
+	 * @param status 200, 304, 500 for compile errors or 503 when the compilers are saturated
+	 * @param cached whether the compiled javascript came from the cache
+	 */
+	void served(String coffeeFilename, int status, boolean cached, long nanos);
+}
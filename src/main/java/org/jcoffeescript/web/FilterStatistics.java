@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript.web;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.jcoffeescript.CompilerListener;
+import org.jcoffeescript.CompilerStatistics;
+import org.jcoffeescript.JCoffeeScriptCompilerPool;
+
+/**
+ * Statistics of a {@link CoffeeScriptFilter}, forwarding every event to the
+ * listener configured for the filter, if any.
+ */
+public class FilterStatistics extends CompilerStatistics implements FilterListener, FilterStatisticsMBean {
+
+	private final BinaryCache previousBinaries;
+	private final JCoffeeScriptCompilerPool compilerPool;
+	private final Object listener;
+	
+	private final AtomicLong ok = new AtomicLong();
+	private final AtomicLong notModified = new AtomicLong();
+	private final AtomicLong errorResponses = new AtomicLong();
+	private final AtomicLong unavailable = new AtomicLong();
+
+	/**
+	 * @param listener a {@link FilterListener}, a {@link CompilerListener}, both or null
+	 */
+	FilterStatistics(BinaryCache previousBinaries, JCoffeeScriptCompilerPool compilerPool, Object listener) {
+		this.previousBinaries = previousBinaries;
+		this.compilerPool = compilerPool;
+		this.listener = listener;
+	}
+	
+	@Override
+	public void served(String coffeeFilename, int status, boolean cached, long nanos) {
+		switch (status) {
+		case HttpServletResponse.SC_OK:
+			ok.incrementAndGet();
+			break;
+		case HttpServletResponse.SC_NOT_MODIFIED:
+			notModified.incrementAndGet();
+			break;
+		case HttpServletResponse.SC_SERVICE_UNAVAILABLE:
+			unavailable.incrementAndGet();
+			break;
+		default:
+			errorResponses.incrementAndGet();
+		}
+		if (listener instanceof FilterListener) {
+			((FilterListener) listener).served(coffeeFilename, status, cached, nanos);
+		}
+	}
+	
+	@Override
+	public void compiled(long nanos, int sourceLength, int javaScriptLength) {
+		super.compiled(nanos, sourceLength, javaScriptLength);
+		if (listener instanceof CompilerListener) {
+			((CompilerListener) listener).compiled(nanos, sourceLength, javaScriptLength);
+		}
+	}
+	
+	@Override
+	public void failed(long nanos, int sourceLength) {
+		super.failed(nanos, sourceLength);
+		if (listener instanceof CompilerListener) {
+			((CompilerListener) listener).failed(nanos, sourceLength);
+		}
+	}
+	
+	@Override
+	public void waited(long nanos) {
+		super.waited(nanos);
+		if (listener instanceof CompilerListener) {
+			((CompilerListener) listener).waited(nanos);
+		}
+	}
+
+	@Override
+	public long getOkCount() {
+		return ok.get();
+	}
+
+	@Override
+	public long getNotModifiedCount() {
+		return notModified.get();
+	}
+
+	@Override
+	public long getErrorResponseCount() {
+		return errorResponses.get();
+	}
+
+	@Override
+	public long getUnavailableCount() {
+		return unavailable.get();
+	}
+
+	@Override
+	public long getCacheHits() {
+		return previousBinaries.getHits();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		return previousBinaries.getMisses();
+	}
+
+	@Override
+	public long getCacheEvictions() {
+		return previousBinaries.getEvictions();
+	}
+
+	@Override
+	public int getCacheSize() {
+		return previousBinaries.size();
+	}
+
+	@Override
+	public long getCacheBytes() {
+		return previousBinaries.getWeight();
+	}
+
+	@Override
+	public int getBusyCompilers() {
+		return compilerPool.getBusyCount();
+	}
+	
+	@Override
+	public void reset() {
+		super.reset();
+		ok.set(0);
+		notModified.set(0);
+		errorResponses.set(0);
+		unavailable.set(0);
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript.web;
+
+import org.jcoffeescript.CompilerStatisticsMBean;
+
+/**
+ * JMX view of the {@link CoffeeScriptFilter}, registered as
+ * org.jcoffeescript:type=CoffeeScriptFilter.
+ */
+public interface FilterStatisticsMBean extends CompilerStatisticsMBean {
+
+	long getOkCount();
+
+	long getNotModifiedCount();
+
+	long getErrorResponseCount();
+
+	long getUnavailableCount();
+
+	long getCacheHits();
+
+	long getCacheMisses();
+
+	long getCacheEvictions();
+
+	int getCacheSize();
+
+	long getCacheBytes();
+
+	int getBusyCompilers();
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript.web;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.jcoffeescript.JCoffeeScriptCompileException;
+
+/**
+ * Collapses concurrent executions for the same key: the first caller runs
+ * the task, the others wait for it and share its result or its exception.
+ */
+/*default*/ class SingleFlight<V> {
+
+	private final ConcurrentMap<String, FutureTask<V>> inFlight = new ConcurrentHashMap<String, FutureTask<V>>();
+
+	public V execute(String key, Callable<V> task) throws IOException, JCoffeeScriptCompileException {
+		FutureTask<V> ownTask = new FutureTask<V>(task);
+		FutureTask<V> runningTask = inFlight.putIfAbsent(key, ownTask);
+		if (runningTask == null) {
+			runningTask = ownTask;
+			try {
+				ownTask.run();
+			} finally {
+				inFlight.remove(key, ownTask);
+			}
+		}
+
+		try {
+			return runningTask.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for " + key);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof JCoffeeScriptCompileException) {
+				throw (JCoffeeScriptCompileException) cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+}
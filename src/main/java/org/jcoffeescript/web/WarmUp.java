@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript.web;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Progress of the compilation of every coffee file when the filter starts,
+ * published as the "warmUp" attribute of the servlet context. Progress and
+ * compilation errors go to the servlet context log.
+ */
+/*default*/ class WarmUp {
+
+	private final ServletContext servletContext;
+	private final int total;
+	private final CountDownLatch remaining;
+	private final AtomicInteger completed = new AtomicInteger();
+	private final ConcurrentMap<String, String> errors = new ConcurrentHashMap<String, String>();
+	private final long startTime = System.currentTimeMillis();
+
+	public WarmUp(ServletContext servletContext, int total) {
+		this.servletContext = servletContext;
+		this.total = total;
+		this.remaining = new CountDownLatch(total);
+		if (total == 0) {
+			finished();
+		}
+	}
+
+	public void compiled(String coffeeFilename) {
+		done();
+	}
+
+	public void failed(String coffeeFilename, String message) {
+		errors.put(coffeeFilename, message);
+		done();
+	}
+
+	public void await() throws InterruptedException {
+		remaining.await();
+	}
+
+	public boolean isDone() {
+		return remaining.getCount() == 0;
+	}
+
+	public int getTotal() {
+		return total;
+	}
+
+	public int getCompleted() {
+		return completed.get();
+	}
+
+	/**
+	 * Error messages by coffee filename.
+	 */
+	public Map<String, String> getErrors() {
+		return errors;
+	}
+
+	private void done() {
+		// only the thread completing the last file sees the total
+		int completed = this.completed.incrementAndGet();
+		if (completed == total) {
+			finished();
+		} else if (completed % 10 == 0) {
+			servletContext.log("CoffeeScript warm-up: " + completed + " of " + total + " files compiled");
+		}
+		remaining.countDown();
+	}
+
+	private void finished() {
+		for (Map.Entry<String, String> error : errors.entrySet()) {
+			servletContext.log("CoffeeScript warm-up: compilation error on file: " + error.getKey() + " "
+					+ error.getValue());
+		}
+		servletContext.log("CoffeeScript warm-up: " + total + " files in " + (System.currentTimeMillis() - startTime)
+				+ "ms, " + errors.size() + " errors");
+	}
+}
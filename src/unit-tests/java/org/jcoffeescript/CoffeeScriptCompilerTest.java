@@ -18,11 +18,22 @@ package org.jcoffeescript;
 
 import org.hamcrest.Matcher;
 import org.junit.Test;
+import org.mozilla.javascript.Context;
 
+import javax.script.ScriptEngineManager;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Arrays;
+import java.util.Collections;
 
 import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeNotNull;
 
 public class CoffeeScriptCompilerTest {
     @Test
@@ -40,10 +51,239 @@ public class CoffeeScriptCompilerTest {
         assertThat(compiling("a = 1", Option.BARE), not(containsFunctionWrapper()));
     }
 
+    @Test
+    public void shouldCompileWithPerCallOptions() throws JCoffeeScriptCompileException {
+        JCoffeeScriptCompiler compiler = new JCoffeeScriptCompiler();
+        Options bare = new Options(Arrays.asList(Option.BARE));
+        for (int i = 0; i < 2; i++) {
+            assertThat(compiler.compile("a = 1", bare), not(containsFunctionWrapper()));
+            assertThat(compiler.compile("a = 1"), containsFunctionWrapper());
+        }
+    }
+
+    @Test
+    public void shouldMinifyWithMinifyOption() throws JCoffeeScriptCompileException {
+        assertThat(compiling("square = (x) -> x * x", Option.BARE, Option.MINIFY),
+                equalTo("var square;square=function(x){return x*x;};"));
+    }
+
+    @Test
+    public void shouldRunStagesBeforeOptionStages() throws JCoffeeScriptCompileException {
+        CompilerStage license = new CompilerStage() {
+            public Writer open(Writer output) throws IOException {
+                output.write("/*! license */\n/* not kept */\n");
+                return output;
+            }
+        };
+        Options options = new Options(Arrays.asList(Option.BARE, Option.MINIFY),
+                Collections.singletonList(license));
+        assertThat(new JCoffeeScriptCompiler().compile("a = 1", options), equalTo("/*! license */var a;a=1;"));
+    }
+
+    @Test
+    public void shouldMinifyWithoutChangingStringsAndRegularExpressions() throws JCoffeeScriptCompileException {
+        Pipeline minifier = new Pipeline(Collections.<CompilerStage>singletonList(new JavaScriptMinifier()));
+        assertThat(minifier.process("var a = 'x  // y', b = \"/* z */\";\n"), equalTo("var a='x  // y',b=\"/* z */\";"));
+        assertThat(minifier.process("if (/[/ ]+/g.test(c)) {\n  return / x/.test(d / e / f);\n}\n"),
+                equalTo("if(/[/ ]+/g.test(c)){return/ x/.test(d/e/f);}"));
+        assertThat(minifier.process("a = b + +c - -d\nx\n++y // done"), equalTo("a=b+ +c- -d\nx\n++y"));
+    }
+
+    @Test
+    public void shouldRefuseSourcesAndResultsOverTheLimits() throws JCoffeeScriptCompileException {
+        JCoffeeScriptCompiler compiler = new JCoffeeScriptCompiler();
+        compiler.setLimits(new CompileLimits(10, 0, 0, 0));
+        assertThat(exceededLimit(compiler, "a = 1234567890"), equalTo(JCoffeeScriptLimitExceededException.Limit.SOURCE_LENGTH));
+        compiler.setLimits(new CompileLimits(0, 0, 0, 10));
+        assertThat(exceededLimit(compiler, "a = 1"), equalTo(JCoffeeScriptLimitExceededException.Limit.JAVASCRIPT_LENGTH));
+    }
+
+    @Test
+    public void shouldStopCompilationsOverTheirBudget() throws JCoffeeScriptCompileException {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            source.append("square").append(i).append(" = (x) -> x * x\n");
+        }
+        JCoffeeScriptCompiler compiler = new JCoffeeScriptCompiler();
+        compiler.setLimits(new CompileLimits(0, 0, 100000, 0));
+        assertThat(exceededLimit(compiler, source.toString()), equalTo(JCoffeeScriptLimitExceededException.Limit.INSTRUCTIONS));
+        compiler.setLimits(new CompileLimits(0, 1, 0, 0));
+        assertThat(exceededLimit(compiler, source.toString()), equalTo(JCoffeeScriptLimitExceededException.Limit.TIME));
+
+        // the compiler still works after being stopped
+        compiler.setLimits(CompileLimits.NONE);
+        assertThat(compiler.compile("a = 1"), containsString("a = 1;"));
+    }
+
+    @Test
+    public void shouldRefuseToCompileWithABudgetInsideAnotherRhinoContext() throws JCoffeeScriptCompileException {
+        JCoffeeScriptCompiler compiler = new JCoffeeScriptCompiler();
+        compiler.setDiskCache(null);
+        compiler.setLimits(new CompileLimits(0, 0, 100000, 0));
+        Context.enter();
+        try {
+            compiler.compile("a = 1");
+            fail("the budget cannot be checked in a context of the global factory");
+        } catch (IllegalStateException e) {
+            // expected
+        } finally {
+            Context.exit();
+        }
+        assertThat(compiler.compile("a = 1"), containsString("a = 1;"));
+    }
+
+    @Test
+    public void shouldTellWhetherTheBudgetIsEnforced() {
+        CompileLimits budget = new CompileLimits(0, 1000, 0, 0);
+        assertTrue(budget.isEnforced());
+        System.setProperty(JCoffeeScriptCompiler.ENGINE_PROPERTY, "javascript");
+        try {
+            assertFalse(budget.isEnforced());
+            assertTrue(new CompileLimits(100, 0, 0, 100).isEnforced());
+        } finally {
+            System.clearProperty(JCoffeeScriptCompiler.ENGINE_PROPERTY);
+        }
+    }
+
+    @Test
+    public void shouldTellListenerAboutCompilations() {
+        CompilerStatistics statistics = new CompilerStatistics();
+        JCoffeeScriptCompiler compiler = new JCoffeeScriptCompiler();
+        compiler.setListener(statistics);
+        try {
+            compiler.compile("a = 1");
+            compiler.compile("list = [1,2\n");
+            fail("should not compile");
+        } catch (JCoffeeScriptCompileException e) {
+            assertThat(statistics.getCompileCount(), equalTo(1L));
+            assertThat(statistics.getErrorCount(), equalTo(1L));
+            assertThat(statistics.getSourceLength(), equalTo((long) "a = 1".length() + "list = [1,2\n".length()));
+            long histogramCount = 0;
+            for (long count : statistics.getLatencyHistogram()) {
+                histogramCount += count;
+            }
+            assertThat(histogramCount, equalTo(1L));
+        }
+    }
+
+    @Test
+    public void shouldCompileStreamsInTheGivenCharset() throws IOException, JCoffeeScriptCompileException {
+        String source = "greeting = \"ol\u00e1, \u00e7a va, \u4f60\u597d\"";
+        ByteArrayOutputStream javaScript = new ByteArrayOutputStream();
+        new JCoffeeScriptCompiler(Arrays.asList(Option.BARE)).compile(
+                new ByteArrayInputStream(source.getBytes("UTF-16")), javaScript, "UTF-16");
+
+        assertThat(javaScript.toString("UTF-16"), equalTo(compiling(source, Option.BARE)));
+        assertThat(javaScript.toString("UTF-16"), containsString("\u00e7a va, \u4f60\u597d"));
+    }
+
+    @Test
+    public void shouldBootstrapFasterFromSharedRuntime() throws JCoffeeScriptCompileException {
+        new JCoffeeScriptCompiler(); // warms up the shared runtime
+
+        long fromSource = Long.MAX_VALUE;
+        long fromSharedRuntime = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            CoffeeScriptRuntime.load(CoffeeScriptRuntime.Mode.INTERPRETED).newGlobalScope();
+            fromSource = Math.min(fromSource, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            new JCoffeeScriptCompiler();
+            fromSharedRuntime = Math.min(fromSharedRuntime, System.nanoTime() - start);
+        }
+        System.out.println(String.format("compiler bootstrap: %d ms from source, %d ms from shared runtime",
+                fromSource / 1000000, fromSharedRuntime / 1000000));
+
+        assertThat(fromSharedRuntime, lessThan(fromSource));
+        assertThat(compiling("a = 1"), containsString("a = 1"));
+    }
+
+    @Test
+    public void shouldCompileTheSameInCompiledMode() throws JCoffeeScriptCompileException {
+        String source = "class Animal\n  constructor: (@name) ->\n  move: (meters) ->\n    alert @name + \" moved \" + meters\n"
+                + "cubes = (num * num * num for num in [1, 2, 3] when num > 1)\n";
+        JCoffeeScriptCompiler interpreted = new JCoffeeScriptCompiler(Collections.<Option>emptyList(),
+                new RhinoCoffeeScriptEngine(CoffeeScriptRuntime.load(CoffeeScriptRuntime.Mode.INTERPRETED)));
+        JCoffeeScriptCompiler compiled = new JCoffeeScriptCompiler(Collections.<Option>emptyList(),
+                new RhinoCoffeeScriptEngine(CoffeeScriptRuntime.load(CoffeeScriptRuntime.Mode.COMPILED)));
+
+        assertThat(compiled.compile(source), equalTo(interpreted.compile(source)));
+
+        long interpretedTime = Long.MAX_VALUE;
+        long compiledTime = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            interpreted.compile(source);
+            interpretedTime = Math.min(interpretedTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            compiled.compile(source);
+            compiledTime = Math.min(compiledTime, System.nanoTime() - start);
+        }
+        System.out.println(String.format("compile: %d ms interpreted, %d ms compiled",
+                interpretedTime / 1000000, compiledTime / 1000000));
+    }
+
+    @Test
+    public void shouldReportErrorsInCompiledMode() {
+        JCoffeeScriptCompiler compiled = new JCoffeeScriptCompiler(Collections.<Option>emptyList(),
+                new RhinoCoffeeScriptEngine(CoffeeScriptRuntime.load(CoffeeScriptRuntime.Mode.COMPILED)));
+        try {
+            compiled.compile("list = [1,2\n");
+            fail("should not compile");
+        } catch (JCoffeeScriptCompileException e) {
+            assertThat(e.getMessage(), containsString("unclosed ["));
+        }
+    }
+
+    @Test
+    public void shouldCompileInScriptEngineWhenAvailable() throws JCoffeeScriptCompileException {
+        assumeNotNull(new ScriptEngineManager().getEngineByName("javascript"));
+        JCoffeeScriptCompiler compiler = new JCoffeeScriptCompiler(Arrays.asList(Option.BARE),
+                new ScriptEngineCoffeeScriptEngine("javascript"));
+
+        assertThat(compiler.compile("a = 1"), equalTo(compiling("a = 1", Option.BARE)));
+        try {
+            compiler.compile("list = [1,2\n");
+            fail("should not compile");
+        } catch (JCoffeeScriptCompileException e) {
+            assertThat(e.getMessage(), equalTo("Error: unclosed [ on line 1"));
+        }
+    }
+
+    @Test
+    public void shouldReportErrorLocation() {
+        try {
+            compiling("a = 1\nb = a +* 2\n");
+            fail("should not compile");
+        } catch (JCoffeeScriptCompileException e) {
+            assertThat(e.getLine(), equalTo(2));
+            assertThat(e.getColumn(), equalTo(-1));
+            assertThat(e.getMessage("broken.coffee"), startsWith("broken.coffee:2: "));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownScriptEngine() {
+        new ScriptEngineCoffeeScriptEngine("no-such-engine");
+    }
+
     private Matcher<String> containsFunctionWrapper() {
         return allOf(startsWith("(function() {\n"), endsWith("\n}).call(this);\n"));
     }
 
+    private JCoffeeScriptLimitExceededException.Limit exceededLimit(JCoffeeScriptCompiler compiler, String source)
+            throws JCoffeeScriptCompileException {
+        try {
+            compiler.compile(source);
+            fail("should be over the limit");
+            return null;
+        } catch (JCoffeeScriptLimitExceededException e) {
+            return e.getLimit();
+        }
+    }
+
     private String compiling(String coffeeScriptSource, Option... options) throws JCoffeeScriptCompileException {
         return new JCoffeeScriptCompiler(Arrays.asList(options)).compile(coffeeScriptSource);
     }
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jcoffeescript;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.internal.matchers.StringContains.containsString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.junit.Test;
+
+public class CoffeeScriptTaskTest {
+
+    @Test
+    public void shouldSkipFilesWithUnchangedSourceHash() throws IOException {
+        File source = temporaryFolder("coffee");
+        File target = temporaryFolder("js");
+        File hashFile = new File(target, "js.sha1");
+        BatchCompiler.write(new File(source, "nested/a.coffee"), "a = 1");
+
+        task(source, target, hashFile).execute();
+        assertThat(Sources.read(new File(target, "nested/a.js"), "UTF-8"), containsString("a = 1;"));
+        assertThat(Sources.read(hashFile, "UTF-8"), containsString(" nested/a.js\n"));
+
+        // as after a fresh checkout of the compiled files, older than their sources
+        BatchCompiler.write(new File(target, "nested/a.js"), "checked out");
+        new File(target, "nested/a.js").setLastModified(new File(source, "nested/a.coffee").lastModified() - 10000);
+        task(source, target, hashFile).execute();
+        assertThat(Sources.read(new File(target, "nested/a.js"), "UTF-8"), is("checked out"));
+
+        BatchCompiler.write(new File(source, "nested/a.coffee"), "a = 2");
+        task(source, target, hashFile).execute();
+        assertThat(Sources.read(new File(target, "nested/a.js"), "UTF-8"), containsString("a = 2;"));
+    }
+
+    @Test
+    public void shouldReportFailuresWithFileAndLine() throws IOException {
+        File source = temporaryFolder("coffee");
+        File target = temporaryFolder("js");
+        BatchCompiler.write(new File(source, "error.coffee"), "a = 1\nb = [");
+
+        CoffeeScriptTask task = task(source, target, null);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        DefaultLogger logger = new DefaultLogger();
+        logger.setOutputPrintStream(new PrintStream(log, true));
+        logger.setErrorPrintStream(new PrintStream(log, true));
+        logger.setMessageOutputLevel(Project.MSG_INFO);
+        task.getProject().addBuildListener(logger);
+        try {
+            task.execute();
+            fail("should not compile");
+        } catch (BuildException e) {
+            assertThat(e.getMessage(), containsString("1 CoffeeScript files failed"));
+            assertThat(log.toString(), containsString(new File(source, "error.coffee").getPath() + ":2: "));
+        }
+    }
+
+    private static CoffeeScriptTask task(File source, File target, File hashFile) {
+        Project project = new Project();
+        project.init();
+        CoffeeScriptTask task = new CoffeeScriptTask();
+        task.setProject(project);
+        task.setTaskName("coffeescript");
+        FileSet fileSet = new FileSet();
+        fileSet.setDir(source);
+        task.addFileset(fileSet);
+        task.setDestdir(target);
+        task.setHashfile(hashFile);
+        task.setBare(true);
+        return task;
+    }
+
+    private static File temporaryFolder(String name) throws IOException {
+        File folder = File.createTempFile("jcoffeescript-" + name, "");
+        folder.delete();
+        folder.mkdirs();
+        return folder;
+    }
+}
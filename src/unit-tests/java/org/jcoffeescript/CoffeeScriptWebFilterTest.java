@@ -17,12 +17,38 @@
 package org.jcoffeescript;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
 
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
@@ -34,6 +60,7 @@ import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.FilterMapping;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.jcoffeescript.web.CoffeeScriptFilter;
+import org.jcoffeescript.web.FilterStatistics;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -54,6 +81,10 @@ public class CoffeeScriptWebFilterTest {
 		FilterHolder filterHandler = context.addFilter(CoffeeScriptFilter.class, "*.js", FilterMapping.DEFAULT);
 		filterHandler.setInitParameter("javascriptResourcePrefix", "/javascript");
 		filterHandler.setInitParameter("coffeescriptFilenamePrefix", "/WEB-INF/coffee");
+		filterHandler.setInitParameter("checkInterval", "100");
+		filterHandler.setInitParameter("fingerprint", "true");
+		filterHandler.setInitParameter("minify", "min");
+		filterHandler.setInitParameter("bundles", "bundle=concurrent,classes; broken=concurrent,error");
 		
 		context.addServlet(DefaultServlet.class, "/*");
 		context.setResourceBase(RESOURCE_BASE);
@@ -79,6 +110,111 @@ public class CoffeeScriptWebFilterTest {
 		}
 	}
 	
+	@Test
+	public void shouldShareCompilationBetweenConcurrentRequests() throws Exception {
+		
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String>> responses = new ArrayList<Future<String>>();
+			for (int i = 0; i < 8; i++) {
+				responses.add(executor.submit(new Callable<String>() {
+					public String call() throws Exception {
+						GetMethod method = new GetMethod("http://localhost:9012/javascript/concurrent.js");
+						assertEquals(200, new HttpClient().executeMethod(method));
+						return method.getResponseBodyAsString();
+					}
+				}));
+			}
+			String first = responses.get(0).get();
+			assertTrue(first.contains("concurrent = true;"));
+			for (Future<String> response : responses) {
+				assertEquals(first, response.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	@Test
+	public void shouldNotCreateSession() throws Exception {
+		
+		GetMethod method = new GetMethod("http://localhost:9012/javascript/simple.js");
+		assertEquals(200, new HttpClient().executeMethod(method));
+		assertNull(method.getResponseHeader("Set-Cookie"));
+	}
+	
+	@Test
+	public void shouldPublishStatisticsOverJMX() throws Exception {
+		
+		GetMethod method = new GetMethod("http://localhost:9012/javascript/simple.js");
+		assertEquals(200, new HttpClient().executeMethod(method));
+		
+		MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		Set<ObjectName> names = mbeanServer.queryNames(new ObjectName("org.jcoffeescript:type=CoffeeScriptFilter,*"), null);
+		assertEquals(1, names.size());
+		ObjectName name = names.iterator().next();
+		assertTrue((Long) mbeanServer.getAttribute(name, "OkCount") > 0);
+		assertTrue((Long) mbeanServer.getAttribute(name, "CompileCount") > 0);
+		assertTrue((Integer) mbeanServer.getAttribute(name, "CacheSize") > 0);
+	}
+	
+	@Test
+	public void shouldServeFingerprintedURLsForever() throws Exception {
+		
+		HttpClient httpClient = new HttpClient();
+		
+		GetMethod plain = new GetMethod("http://localhost:9012/javascript/classes.js");
+		assertEquals(200, httpClient.executeMethod(plain));
+		String content = plain.getResponseBodyAsString();
+		assertNull(plain.getResponseHeader("Cache-Control"));
+		
+		String fingerprintedName = AssetManifest.fingerprintedName("classes.js", content);
+		GetMethod fingerprinted = new GetMethod("http://localhost:9012/javascript/" + fingerprintedName);
+		assertEquals(200, httpClient.executeMethod(fingerprinted));
+		assertEquals(content, fingerprinted.getResponseBodyAsString());
+		assertEquals("public, max-age=31536000, immutable", fingerprinted.getResponseHeader("Cache-Control").getValue());
+		
+		GetMethod outdated = new GetMethod("http://localhost:9012/javascript/classes.0123abcd.js");
+		assertEquals(200, httpClient.executeMethod(outdated));
+		assertEquals(content, outdated.getResponseBodyAsString());
+		assertEquals("no-cache", outdated.getResponseHeader("Cache-Control").getValue());
+	}
+	
+	@Test
+	public void shouldServeBundlesConcatenated() throws Exception {
+		
+		HttpClient httpClient = new HttpClient();
+		GetMethod method = new GetMethod("http://localhost:9012/javascript/bundle.js");
+		assertEquals(200, httpClient.executeMethod(method));
+		String bundle = method.getResponseBodyAsString();
+		assertTrue(bundle.indexOf("concurrent = true;") >= 0);
+		assertTrue(bundle.indexOf("concurrent = true;") < bundle.indexOf("Sammy the Python"));
+		
+		GetMethod broken = new GetMethod("http://localhost:9012/javascript/broken.js");
+		assertEquals(500, httpClient.executeMethod(broken));
+		assertTrue(broken.getResponseBodyAsString().contains("error.coffee"));
+	}
+	
+	@Test
+	public void shouldServeMinifiedJavascriptNextToTheRegularOne() throws Exception {
+		
+		HttpClient httpClient = new HttpClient();
+		GetMethod regular = new GetMethod("http://localhost:9012/javascript/classes.js");
+		assertEquals(200, httpClient.executeMethod(regular));
+		String regularBody = regular.getResponseBodyAsString();
+		GetMethod minified = new GetMethod("http://localhost:9012/javascript/classes.min.js");
+		assertEquals(200, httpClient.executeMethod(minified));
+		String minifiedBody = minified.getResponseBodyAsString();
+		
+		assertTrue(minifiedBody.contains("alert(\"Slithering...\");"));
+		assertTrue(minifiedBody.length() < regularBody.length() * 3 / 4);
+		assertFalse(regular.getResponseHeader("ETag").getValue().equals(minified.getResponseHeader("ETag").getValue()));
+		
+		GetMethod bundle = new GetMethod("http://localhost:9012/javascript/bundle.min.js");
+		assertEquals(200, httpClient.executeMethod(bundle));
+		assertTrue(bundle.getResponseBodyAsString().startsWith("(function(){var concurrent;concurrent=true;"));
+	}
+	
 	@Test
 	public void shouldReturn404() throws Exception {
 		
@@ -107,9 +243,15 @@ public class CoffeeScriptWebFilterTest {
 		HttpClient httpClient = new HttpClient();
 		
 		GetMethod method = new GetMethod("http://localhost:9012/javascript/error.js");
-		int response = httpClient.executeMethod(method);
-		
-		assertEquals(500, response);
+		for (int i = 0; i < 2; i++) {
+			int response = httpClient.executeMethod(method);
+			
+			assertEquals(500, response);
+			assertEquals("text/javascript; charset=UTF-8", method.getResponseHeader("Content-Type").getValue());
+			String body = method.getResponseBodyAsString();
+			assertTrue(body, body.startsWith("throw new Error(\"/WEB-INF/coffee/error.coffee:1: "));
+			assertTrue(body, body.contains("unclosed ["));
+		}
 	}
 	
 	@Test
@@ -131,6 +273,49 @@ public class CoffeeScriptWebFilterTest {
 		assertEquals(304, response);
 	}
 	
+	@Test
+	public void shouldReturnNotModifiedForMatchingETag() throws Exception {
+		
+		HttpClient httpClient = new HttpClient();
+		
+		GetMethod method = new GetMethod("http://localhost:9012/javascript/classes.js");
+		assertEquals(200, httpClient.executeMethod(method));
+		assertEquals(String.valueOf(method.getResponseBody().length), method.getResponseHeader("Content-Length").getValue());
+		
+		Header etag = method.getResponseHeader("ETag");
+		method.setRequestHeader(new Header("If-None-Match", "\"other\", " + etag.getValue()));
+		assertEquals(304, httpClient.executeMethod(method));
+		assertEquals("Accept-Encoding", method.getResponseHeader("Vary").getValue());
+		
+		method.setRequestHeader(new Header("If-None-Match", "\"other\""));
+		assertEquals(200, httpClient.executeMethod(method));
+	}
+	
+	@Test
+	public void shouldReturnGzippedJSResourceWhenAccepted() throws Exception {
+		
+		HttpClient httpClient = new HttpClient();
+		
+		GetMethod plain = new GetMethod("http://localhost:9012/javascript/classes.js");
+		assertEquals(200, httpClient.executeMethod(plain));
+		String plainContent = plain.getResponseBodyAsString();
+		
+		GetMethod gzipped = new GetMethod("http://localhost:9012/javascript/classes.js");
+		gzipped.setRequestHeader(new Header("Accept-Encoding", "gzip, deflate"));
+		assertEquals(200, httpClient.executeMethod(gzipped));
+		assertEquals("gzip", gzipped.getResponseHeader("Content-Encoding").getValue());
+		byte[] gzippedContent = gzipped.getResponseBody();
+		assertTrue(gzippedContent.length < plainContent.length());
+		
+		InputStream uncompressed = new GZIPInputStream(new ByteArrayInputStream(gzippedContent));
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		int b;
+		while ((b = uncompressed.read()) != -1) {
+			content.write(b);
+		}
+		assertEquals(plainContent, content.toString("UTF-8"));
+	}
+	
 	@Test
 	public void shouldCompileAgainWhenFileChanges() throws Exception {
 		
@@ -156,14 +341,179 @@ public class CoffeeScriptWebFilterTest {
 			writer.close();
 		}
 		
-		// second request
+		// second request, once the change watcher noticed the change
 		Header header = new Header("If-Modified-Since", lastModified.getValue());
 		method.setRequestHeader(header);
-		response = httpClient.executeMethod(method);
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((response = httpClient.executeMethod(method)) == 304 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
 		assertEquals(200, response);
 		
 		String secondResponse = method.getResponseBodyAsString();
 		
 		assertNotSame(firstResponse, secondResponse);
 	}
+	
+	@Test
+	public void shouldCompileAgainWhenFileChangesInsideAnArchive() throws Exception {
+		File war = File.createTempFile("app", ".war");
+		war.deleteOnExit();
+		writeArchive(war, "a = 1", System.currentTimeMillis() - 60000);
+		
+		Server server = startServer(9015, "jar:" + war.toURI() + "!/", "checkInterval", "100");
+		try {
+			HttpClient httpClient = new HttpClient();
+			GetMethod method = new GetMethod("http://localhost:9015/js/archived.js");
+			assertEquals(200, httpClient.executeMethod(method));
+			assertTrue(method.getResponseBodyAsString().contains("a = 1;"));
+			
+			// a redeployed archive with the file changed
+			File redeployed = File.createTempFile("app", ".war", war.getParentFile());
+			writeArchive(redeployed, "b = 2", System.currentTimeMillis());
+			assertTrue(redeployed.renameTo(war));
+			
+			String content = null;
+			long deadline = System.currentTimeMillis() + 5000;
+			while (System.currentTimeMillis() < deadline) {
+				assertEquals(200, httpClient.executeMethod(method));
+				content = method.getResponseBodyAsString();
+				if (content.contains("b = 2;")) {
+					break;
+				}
+				Thread.sleep(50);
+			}
+			assertTrue(content.contains("b = 2;"));
+		} finally {
+			server.stop();
+		}
+	}
+	
+	@Test
+	public void shouldWaitForACompilationStillRunningInsteadOfStartingAnother() throws Exception {
+		String app = slowApp("slow-app");
+		
+		// every request gives up on the compilation after a millisecond
+		Server server = startServer(9016, app, "compilerPoolMaxWait", "1");
+		try {
+			HttpClient httpClient = new HttpClient();
+			GetMethod method = new GetMethod("http://localhost:9016/js/slow.js");
+			assertEquals(503, httpClient.executeMethod(method));
+			method.getResponseBodyAsString();
+			assertEquals(503, httpClient.executeMethod(method));
+			method.getResponseBodyAsString();
+			
+			int response;
+			long deadline = System.currentTimeMillis() + 30000;
+			while ((response = httpClient.executeMethod(method)) == 503 && System.currentTimeMillis() < deadline) {
+				method.getResponseBodyAsString();
+				Thread.sleep(50);
+			}
+			assertEquals(200, response);
+			assertTrue(method.getResponseBodyAsString().contains("square99"));
+			
+			CompilerStatistics statistics = (CompilerStatistics) ((ServletContextHandler) server.getHandler())
+					.getServletContext().getAttribute("statistics");
+			assertEquals(1, statistics.getCompileCount());
+		} finally {
+			server.stop();
+		}
+	}
+	
+	@Test
+	public void shouldAnswerUnavailableWhenACompilationRunsOutOfTime() throws Exception {
+		Server server = startServer(9017, slowApp("budget-app"), "maxCompileMillis", "1");
+		try {
+			HttpClient httpClient = new HttpClient();
+			GetMethod method = new GetMethod("http://localhost:9017/js/slow.js");
+			assertEquals(503, httpClient.executeMethod(method));
+			assertTrue(method.getResponseBodyAsString().contains("TIME limit"));
+			
+			FilterStatistics statistics = (FilterStatistics) ((ServletContextHandler) server.getHandler())
+					.getServletContext().getAttribute("statistics");
+			assertEquals(1, statistics.getUnavailableCount());
+			
+			// the failure is not cached
+			assertEquals(503, httpClient.executeMethod(method));
+			method.getResponseBodyAsString();
+			assertEquals(2, statistics.getErrorCount());
+		} finally {
+			server.stop();
+		}
+	}
+	
+	@Test(expected = ServletException.class)
+	public void shouldRejectInitParametersOutOfRange() throws Exception {
+		final ServletContext servletContext = (ServletContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] {ServletContext.class}, new InvocationHandler() {
+					
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return null;
+					}
+				});
+		FilterConfig config = (FilterConfig) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] {FilterConfig.class}, new InvocationHandler() {
+					
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("getServletContext")) {
+							return servletContext;
+						}
+						if (method.getName().equals("getInitParameter") && args[0].equals("compilerPoolSize")) {
+							return "3000000000";
+						}
+						return null;
+					}
+				});
+		new CoffeeScriptFilter().init(config);
+	}
+	
+	/**
+	 * A resource base with a coffee file taking a few seconds to compile.
+	 */
+	private static String slowApp(String name) throws Exception {
+		File app = new File("target/classes/unit-tests", name);
+		File coffeeDirectory = new File(app, "WEB-INF/coffee");
+		coffeeDirectory.mkdirs();
+		BufferedWriter writer = new BufferedWriter(new FileWriter(new File(coffeeDirectory, "slow.coffee")));
+		try {
+			for (int i = 0; i < 100; i++) {
+				writer.append("square" + i + " = (x) -> x * x");
+				writer.newLine();
+			}
+		} finally {
+			writer.close();
+		}
+		return app.getPath();
+	}
+	
+	private static Server startServer(int port, String resourceBase, String... initParameters) throws Exception {
+		Server server = new Server();
+		SelectChannelConnector connector = new SelectChannelConnector();
+		connector.setPort(port);
+		server.addConnector(connector);
+		ServletContextHandler context = new ServletContextHandler();
+		context.setContextPath("/");
+		FilterHolder filterHandler = context.addFilter(CoffeeScriptFilter.class, "*.js", FilterMapping.DEFAULT);
+		for (int i = 0; i < initParameters.length; i += 2) {
+			filterHandler.setInitParameter(initParameters[i], initParameters[i + 1]);
+		}
+		context.addServlet(DefaultServlet.class, "/*");
+		context.setResourceBase(resourceBase);
+		server.setHandler(context);
+		server.start();
+		return server;
+	}
+	
+	private static void writeArchive(File archive, String coffeeSource, long time) throws Exception {
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive));
+		try {
+			ZipEntry entry = new ZipEntry("WEB-INF/coffee/archived.coffee");
+			entry.setTime(time);
+			out.putNextEntry(entry);
+			out.write(coffeeSource.getBytes("UTF-8"));
+			out.closeEntry();
+		} finally {
+			out.close();
+		}
+	}
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class CompileServerTest {
+
+    private static CompileServer server;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new CompileServer(0, new JCoffeeScriptCompilerPool(2, 60000));
+        new Thread(server).start();
+    }
+
+    @AfterClass
+    public static void stopServer() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void shouldCompileSeveralSourcesOverOneConnection() throws Exception {
+        CompileClient client = new CompileClient(server.getPort());
+        try {
+            assertThat(client.compile("a = 1", Collections.<Option>emptyList()), startsWith("(function() {"));
+            assertThat(client.compile("a = 1", Arrays.asList(Option.BARE)), not(startsWith("(function() {")));
+            try {
+                client.compile("list = [1,2\n", Collections.<Option>emptyList());
+                fail("should not compile");
+            } catch (JCoffeeScriptCompileException e) {
+                assertThat(e.getMessage(), containsString("unclosed ["));
+                assertThat(e.getLine(), equalTo(1));
+            }
+            assertThat(client.compile("b = 2", Arrays.asList(Option.BARE)), containsString("b = 2;"));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void shouldCompileStandardInputOnServerFromMain() throws Exception {
+        ByteArrayOutputStream javaScript = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(javaScript);
+        String[] args = {"--client", "--port", String.valueOf(server.getPort()), "--bare"};
+        assertThat(new Main().execute(args, out, new ByteArrayInputStream("a = 1".getBytes())), equalTo(0));
+        out.close();
+        assertThat(javaScript.toString(), equalTo("var a;\na = 1;"));
+    }
+
+    @Test
+    public void shouldAcceptOnlyKnownOptionsInAnySpelling() throws Exception {
+        Socket socket = new Socket(InetAddress.getByName(null), server.getPort());
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            CompileServer.writeString(out, " BARE,,BARE ");
+            CompileServer.writeString(out, "a = 1");
+            assertThat(in.readByte(), equalTo(CompileServer.COMPILED));
+            assertThat(CompileServer.readString(in), equalTo("var a;\na = 1;"));
+            CompileServer.writeString(out, "NOPE");
+            CompileServer.writeString(out, "a = 1");
+            assertThat(in.readByte(), equalTo(CompileServer.ERROR));
+            assertThat(CompileServer.readString(in), containsString("unknown option"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void shouldAnswerUnexpectedFailuresWithAnError() throws Exception {
+        CompileServer failingServer = new CompileServer(0, new JCoffeeScriptCompilerPool(
+                new Callable<JCoffeeScriptCompiler>() {
+                    public JCoffeeScriptCompiler call() {
+                        throw new IllegalStateException("no engine");
+                    }
+                }, 1, 60000));
+        new Thread(failingServer).start();
+        CompileClient client = new CompileClient(failingServer.getPort());
+        try {
+            for (int i = 0; i < 2; i++) {
+                try {
+                    client.compile("a = 1", Collections.<Option>emptyList());
+                    fail("should not compile");
+                } catch (JCoffeeScriptCompileException e) {
+                    assertThat(e.getMessage(), containsString("no engine"));
+                }
+            }
+        } finally {
+            client.close();
+            failingServer.close();
+        }
+    }
+}
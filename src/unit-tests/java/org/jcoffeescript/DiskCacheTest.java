@@ -0,0 +1,96 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DiskCacheTest {
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws Exception {
+        directory = File.createTempFile("jcoffeescript-cache", "");
+        directory.delete();
+        directory.mkdirs();
+        directory.deleteOnExit();
+    }
+
+    @Test
+    public void shouldServeCachedJavaScriptWithoutCompiling() throws JCoffeeScriptCompileException {
+        JCoffeeScriptCompiler compiler = new JCoffeeScriptCompiler();
+        compiler.setDiskCache(new DiskCache(directory));
+        String compiled = compiler.compile("a = 1");
+
+        JCoffeeScriptCompiler restarted = new JCoffeeScriptCompiler(Collections.<Option>emptyList(), new FailingEngine());
+        restarted.setDiskCache(new DiskCache(directory));
+        assertThat(restarted.compile("a = 1"), equalTo(compiled));
+    }
+
+    @Test
+    public void shouldKeepOptionsApart() throws JCoffeeScriptCompileException {
+        DiskCache cache = new DiskCache(directory);
+        JCoffeeScriptCompiler compiler = new JCoffeeScriptCompiler();
+        compiler.setDiskCache(cache);
+        compiler.compile("a = 1");
+
+        assertThat(cache.get("a = 1", new Options(Collections.<Option>emptyList())), containsString("(function() {"));
+        assertThat(cache.get("a = 1", new Options(Arrays.asList(Option.BARE))), nullValue());
+        assertThat(cache.keyFor("a = 1", new Options(Arrays.asList(Option.BARE))),
+                not(equalTo(cache.keyFor("a = 1", new Options(Collections.<Option>emptyList())))));
+    }
+
+    @Test
+    public void shouldEvictOldestEntriesBeyondMaxSize() {
+        DiskCache cache = new DiskCache(directory, 1000);
+        Options options = new Options(Collections.<Option>emptyList());
+        char[] content = new char[300];
+        Arrays.fill(content, 'x');
+        for (int i = 0; i < 9; i++) {
+            cache.put("a = " + i, options, new String(content));
+        }
+        for (File file : directory.listFiles()) {
+            file.setLastModified(System.currentTimeMillis() - 60000);
+        }
+        cache.put("a = 9", options, new String(content));
+
+        long size = 0;
+        for (File file : directory.listFiles()) {
+            size += file.length();
+        }
+        assertThat(size, lessThanOrEqualTo(1000L));
+        assertThat(cache.get("a = 9", options), equalTo(new String(content)));
+    }
+
+    private static class FailingEngine implements CoffeeScriptEngine {
+        public String compile(String coffeeScriptSource, Options options) {
+            throw new AssertionError("should have been served from the disk cache");
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class JCoffeeScriptCompilerPoolTest {
+
+    @Test
+    public void shouldCompileConcurrently() throws Exception {
+        final JCoffeeScriptCompilerPool pool = new JCoffeeScriptCompilerPool(2, 60000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 8; i++) {
+                final int value = i;
+                results.add(executor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        return pool.compile("a = " + value);
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertThat(results.get(i).get(), containsString("a = " + i + ";"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(2, pool.getCreatedCount());
+        assertEquals(0, pool.getBusyCount());
+    }
+
+    @Test
+    public void shouldFailWhenAllCompilersAreBusy() throws Exception {
+        JCoffeeScriptCompilerPool pool = new JCoffeeScriptCompilerPool(1, 0);
+        JCoffeeScriptCompiler compiler = pool.borrow();
+        try {
+            pool.compile("a = 1");
+            fail("pool should be saturated");
+        } catch (JCoffeeScriptPoolSaturatedException e) {
+            assertEquals(1, pool.getSaturationCount());
+        } finally {
+            pool.release(compiler);
+        }
+        assertThat(pool.compile("a = 1"), containsString("a = 1;"));
+    }
+
+    @Test
+    public void shouldRejectAsyncCompilationsBeyondTheQueueLimit() throws Exception {
+        JCoffeeScriptCompilerPool pool = new JCoffeeScriptCompilerPool(1, 60000);
+        pool.setAsyncExecutor(JCoffeeScriptCompilerPool.newBoundedExecutor(1, 1));
+        JCoffeeScriptCompiler compiler = pool.borrow();
+        Future<String> running;
+        Future<String> queued;
+        try {
+            running = pool.compileAsync("a = 1");
+            queued = pool.compileAsync("b = 2");
+            try {
+                pool.compileAsync("c = 3");
+                fail("queue should be full");
+            } catch (JCoffeeScriptPoolSaturatedException e) {
+                assertEquals(1, pool.getSaturationCount());
+            }
+        } finally {
+            pool.release(compiler);
+        }
+        assertThat(running.get(), containsString("a = 1;"));
+        assertThat(queued.get(), containsString("b = 2;"));
+        pool.shutdown();
+    }
+
+    @Test
+    public void shouldGiveUpOnAsyncCompilationsNotDoneWithinTheMaxWait() throws Exception {
+        JCoffeeScriptCompilerPool pool = new JCoffeeScriptCompilerPool(1, 50);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        pool.setAsyncExecutor(executor);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Future<String> queued = pool.compileAsync("a = 1");
+        try {
+            pool.await(queued);
+            fail("compilation should still be queued");
+        } catch (JCoffeeScriptPoolSaturatedException e) {
+            assertEquals(1, pool.getSaturationCount());
+        } finally {
+            blocked.countDown();
+        }
+        // the compilation goes on
+        assertThat(queued.get(), containsString("a = 1;"));
+        pool.shutdown();
+    }
+
+    @Test
+    public void shouldReportTheTimeAsyncCompilationsWaitInTheQueue() throws Exception {
+        JCoffeeScriptCompilerPool pool = new JCoffeeScriptCompilerPool(1, 5000);
+        CompilerStatistics statistics = new CompilerStatistics();
+        pool.setListener(statistics);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        pool.setAsyncExecutor(executor);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Future<String> queued = pool.compileAsync("a = 1");
+        Thread.sleep(50);
+        blocked.countDown();
+        pool.await(queued);
+        assertEquals(1, statistics.getWaitCount());
+        assertTrue(statistics.getTotalWaitMillis() >= 50);
+        pool.shutdown();
+    }
+}
@@ -20,8 +20,10 @@ import org.junit.Test;
 import static org.hamcrest.CoreMatchers.*;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Arrays;
 
 import static org.junit.Assert.assertThat;
 import static org.junit.internal.matchers.StringContains.containsString;
@@ -33,6 +35,15 @@ public class MainTest {
         assertThat(compilingByPiping("a = 1"), containsString("a = 1;"));
     }
 
+    @Test
+    public void shouldReadStandardInputAsUtf8() throws IOException {
+        ByteArrayOutputStream javaScript = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(javaScript, true, "UTF-8");
+        new Main().execute(new String[] {"--bare"}, out, new ByteArrayInputStream("a = '\u00e9\u4e2d'".getBytes("UTF-8")));
+        out.close();
+        assertThat(javaScript.toString("UTF-8"), containsString("a = '\u00e9\u4e2d';"));
+    }
+
     @Test
     public void shouldWrapWhenNoArgs() {
         assertThat(compilingByPiping("a = 1"), startsWith("(function() {"));
@@ -43,6 +54,95 @@ public class MainTest {
         assertThat(compilingByPiping("a = 1", "--bare"), not(startsWith("(function() {")));
     }
 
+    @Test
+    public void shouldCompileFolderMirroringItsLayoutAndSkipUpToDateFiles() throws IOException {
+        File source = temporaryFolder("coffee");
+        File target = temporaryFolder("js");
+        BatchCompiler.write(new File(source, "a.coffee"), "a = 1");
+        BatchCompiler.write(new File(source, "nested/b.coffee"), "b = 2");
+        BatchCompiler.write(new File(source, "nested/error.coffee"), "a = [");
+        BatchCompiler.write(new File(source, "readme.txt"), "not coffee");
+        String[] args = {"--bare", "--threads", "2", "--out", target.getPath(), source.getPath()};
+
+        PrintStream out = new PrintStream(new ByteArrayOutputStream());
+        assertThat(new Main().execute(args, out, null), is(1));
+        assertThat(Sources.read(new File(target, "a.js"), "UTF-8"), containsString("a = 1;"));
+        assertThat(Sources.read(new File(target, "nested/b.js"), "UTF-8"), containsString("b = 2;"));
+        assertThat(new File(target, "nested/error.js").exists(), is(false));
+        assertThat(new File(target, "readme.js").exists(), is(false));
+
+        ByteArrayOutputStream summary = new ByteArrayOutputStream();
+        new Main().execute(args, new PrintStream(summary, true), null);
+        assertThat(summary.toString(), containsString("compiled 0, skipped 2, failed 1"));
+    }
+
+    @Test
+    public void shouldWriteFingerprintedFilesAndManifest() throws IOException {
+        File source = temporaryFolder("coffee");
+        File target = temporaryFolder("js");
+        File manifest = new File(target, "manifest.json");
+        BatchCompiler.write(new File(source, "nested/b.coffee"), "b = 2");
+        String[] args = {"--out", target.getPath(), "--manifest", manifest.getPath(), source.getPath()};
+
+        for (int i = 0; i < 2; i++) {
+            assertThat(new Main().execute(args, new PrintStream(new ByteArrayOutputStream()), null), is(0));
+            String javaScript = Sources.read(new File(target, "nested/b.js"), "UTF-8");
+            String fingerprintedName = AssetManifest.fingerprintedName("nested/b.js", javaScript);
+            assertThat(fingerprintedName, containsString("nested/b."));
+            assertThat(Sources.read(new File(target, fingerprintedName), "UTF-8"), is(javaScript));
+            assertThat(Sources.read(manifest, "UTF-8"),
+                    is("{\n  \"nested/b.js\": \"" + fingerprintedName + "\"\n}\n"));
+        }
+    }
+
+    @Test
+    public void shouldCompileChangedFilesWhenWatching() throws Exception {
+        File source = temporaryFolder("coffee");
+        File target = temporaryFolder("js");
+        File coffeeFile = new File(source, "a.coffee");
+        BatchCompiler.write(coffeeFile, "a = 1");
+        final Watcher watcher = new Watcher(new BatchCompiler(Arrays.asList(Option.BARE), target, 1, System.err),
+                Arrays.asList(source), 20, 20, new PrintStream(new ByteArrayOutputStream()));
+        Thread watching = new Thread() {
+            public void run() {
+                try {
+                    watcher.watch();
+                } catch (InterruptedException e) {
+                    // done
+                }
+            }
+        };
+        watching.start();
+        try {
+            File javaScriptFile = new File(target, "a.js");
+            assertThat(waitForContent(javaScriptFile, "a = 1;"), is(true));
+
+            BatchCompiler.write(coffeeFile, "a = 2");
+            coffeeFile.setLastModified(javaScriptFile.lastModified() + 2000);
+            assertThat(waitForContent(javaScriptFile, "a = 2;"), is(true));
+        } finally {
+            watching.interrupt();
+        }
+    }
+
+    private static boolean waitForContent(File file, String content) throws Exception {
+        long deadline = System.currentTimeMillis() + 20000;
+        while (System.currentTimeMillis() < deadline) {
+            if (file.exists() && Sources.read(file, "UTF-8").contains(content)) {
+                return true;
+            }
+            Thread.sleep(20);
+        }
+        return false;
+    }
+
+    private static File temporaryFolder(String name) throws IOException {
+        File folder = File.createTempFile("jcoffeescript-" + name, "");
+        folder.delete();
+        folder.mkdirs();
+        return folder;
+    }
+
     private String compilingByPiping(String input, String... args) {
         ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
         PrintStream printStream = new PrintStream(byteArrayOutputStream);
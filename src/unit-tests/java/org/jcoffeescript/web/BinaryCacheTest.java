@@ -0,0 +1,124 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URL;
+
+import org.junit.Test;
+
+public class BinaryCacheTest {
+	
+	private static final URL COFFEE_URL = BinaryCacheTest.class.getResource("BinaryCacheTest.class");
+	
+	@Test
+	public void shouldEvictEntriesNotHitSinceLastSweep() {
+		BinaryCache cache = new BinaryCache(2, 0);
+		cache.put("a", binary("a"));
+		cache.put("b", binary("b"));
+		cache.get("a");
+		cache.put("c", binary("c"));
+		
+		assertNotNull(cache.get("a"));
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("c"));
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+	}
+	
+	@Test
+	public void shouldBoundTotalContentLength() {
+		BinaryCache cache = new BinaryCache(100, 10);
+		cache.put("a", binary("12345"));
+		cache.put("b", binary("12345"));
+		cache.put("c", binary("12345"));
+		
+		assertTrue(cache.getWeight() <= 10);
+		assertEquals(2, cache.size());
+	}
+	
+	@Test
+	public void shouldRemoveBinariesOfChangedFiles() throws IOException {
+		File coffeeFile = File.createTempFile("changed", ".coffee");
+		coffeeFile.deleteOnExit();
+		FileWriter writer = new FileWriter(coffeeFile);
+		writer.write("a = 1");
+		writer.close();
+		coffeeFile.setLastModified(coffeeFile.lastModified() - 10000);
+		
+		BinaryCache cache = new BinaryCache(10, 0);
+		cache.put("changed", new Binary(coffeeFile.toURI().toURL(), "changed"));
+		cache.put("unchanged", binary("unchanged"));
+		assertEquals(0, cache.removeStale());
+		
+		coffeeFile.setLastModified(coffeeFile.lastModified() + 5000);
+		assertEquals(1, cache.removeStale());
+		assertNull(cache.get("changed"));
+		assertNotNull(cache.get("unchanged"));
+		assertEquals(binary("unchanged").getWeight(), cache.getWeight());
+	}
+	
+	@Test
+	public void shouldCountHitsAndMisses() {
+		BinaryCache cache = new BinaryCache(10, 0);
+		cache.put("a", binary("a"));
+		cache.get("a");
+		cache.get("a");
+		cache.get("b");
+		
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+	
+	@Test
+	public void shouldReplaceAndRemoveEntries() {
+		BinaryCache cache = new BinaryCache(10, 0);
+		cache.put("a", binary("1"));
+		cache.put("a", binary("123"));
+		assertEquals(3, cache.getWeight());
+		
+		cache.remove("a");
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.getWeight());
+	}
+	
+	@Test
+	public void shouldNotKeepReplacedAndRemovedEntries() {
+		BinaryCache cache = new BinaryCache(100, 0);
+		for (int i = 0; i < 10000; i++) {
+			cache.put("key" + (i % 5), binary("content"));
+			if (i % 7 == 0) {
+				cache.remove("key" + (i % 5));
+			}
+		}
+		
+		assertTrue(cache.size() <= 5);
+		assertTrue(cache.getClockSize() <= 2 * cache.size() + 17);
+		assertEquals(cache.size() * binary("content").getWeight(), cache.getWeight());
+	}
+	
+	private Binary binary(String content) {
+		return new Binary(COFFEE_URL, content);
+	}
+}
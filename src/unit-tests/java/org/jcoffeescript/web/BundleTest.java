@@ -0,0 +1,40 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript.web;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class BundleTest {
+	
+	@Test
+	public void shouldLookModifiedWhenAMemberIsReplacedByAnOlderFile() {
+		Bundle bundle = new Bundle("app.js", Arrays.asList("/WEB-INF/coffee/a.coffee"));
+		long now = System.currentTimeMillis();
+		Binary member = new Binary(now, "a = 1;".getBytes(), null);
+		Binary concatenated = bundle.concatenate(new Binary[] {member});
+		assertSame(concatenated, bundle.concatenate(new Binary[] {member}));
+		
+		// restored from a backup
+		Binary restored = bundle.concatenate(new Binary[] {new Binary(now - 60000, "a = 0;".getBytes(), null)});
+		assertTrue(restored.getLastModified() / 1000 > concatenated.getLastModified() / 1000);
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2011 Leonardo Verissimo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jcoffeescript.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.FilterMapping;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.junit.Test;
+
+public class WarmUpTest {
+	
+	@Test
+	public void shouldCompileEveryCoffeeFileBeforeServingWhenBlocking() throws Exception {
+		Server server = new Server();
+		SelectChannelConnector connector = new SelectChannelConnector();
+		connector.setPort(9014);
+		server.addConnector(connector);
+		
+		ServletContextHandler context = new ServletContextHandler();
+		context.setContextPath("/");
+		FilterHolder filterHandler = context.addFilter(CoffeeScriptFilter.class, "*.js", FilterMapping.DEFAULT);
+		filterHandler.setInitParameter("javascriptResourcePrefix", "/javascript");
+		filterHandler.setInitParameter("warmUp", "blocking");
+		context.addServlet(DefaultServlet.class, "/*");
+		context.setResourceBase("target/classes/unit-tests/app");
+		server.setHandler(context);
+		
+		server.start();
+		try {
+			WarmUp warmUp = (WarmUp) context.getServletContext().getAttribute("warmUp");
+			assertTrue(warmUp.isDone());
+			assertEquals(4, warmUp.getTotal());
+			assertEquals(4, warmUp.getCompleted());
+			assertEquals(1, warmUp.getErrors().size());
+			assertTrue(warmUp.getErrors().containsKey("/WEB-INF/coffee/error.coffee"));
+			
+			// failures are cached as well
+			BinaryCache binaries = (BinaryCache) context.getServletContext().getAttribute("previousBinaries");
+			assertEquals(4, binaries.size());
+		} finally {
+			server.stop();
+		}
+	}
+	
+	@Test
+	public void shouldLogTheSummaryOnceWhenFilesCompleteConcurrently() throws Exception {
+		final AtomicInteger summaries = new AtomicInteger();
+		ServletContext servletContext = (ServletContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] {ServletContext.class}, new InvocationHandler() {
+					
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("log") && ((String) args[0]).contains(" files in ")) {
+							summaries.incrementAndGet();
+						}
+						return null;
+					}
+				});
+		for (int run = 0; run < 100; run++) {
+			summaries.set(0);
+			final WarmUp warmUp = new WarmUp(servletContext, 8);
+			ExecutorService executor = Executors.newFixedThreadPool(8);
+			for (int i = 0; i < 8; i++) {
+				final String coffeeFilename = "/file" + i + ".coffee";
+				executor.execute(new Runnable() {
+					
+					public void run() {
+						warmUp.compiled(coffeeFilename);
+					}
+				});
+			}
+			warmUp.await();
+			executor.shutdown();
+			assertEquals(1, summaries.get());
+		}
+	}
+}